@@ -0,0 +1,132 @@
+
+/**
+ * Copyright (c) 2015, Johan Ofverstedt <johan.ofverstedt@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with or without fee is hereby granted,
+ * provided that the above copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS SOFTWARE INCLUDING ALL
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN
+ * AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+import java.awt.Graphics2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+
+/**
+ *  Checks that moving, turning, recoloring and painting turtles doesn't
+ *  create any garbage, by counting the bytes allocated by the current thread.
+ *  Runs without a window and exits with status 1 if a check fails.
+ *
+ *  <p>Painting copies images of the circles turtles are made of, which
+ *  are made the first time a color, size and position within a pixel is
+ *  seen, so the turtles are painted many times before anything is counted.</p>
+ *
+ *  <p>Needs a HotSpot based JVM, which can count allocated bytes per thread.</p>
+ */
+public class AllocationCheck {
+  private static final int TURTLES = 50;
+  private static final int STEPS = 200000;
+  private static final int PAINTS = 2000;
+
+  //Allow for a little noise, a real allocation costs at least 16 bytes per step or painted turtle
+  private static final double MAX_BYTES_PER_STEP = 0.5;
+
+  private static com.sun.management.ThreadMXBean threads;
+  private static boolean failed = false;
+
+  private static BufferedImage img;
+  private static Graphics2D g;
+  private static final Ellipse2D.Double circle = new Ellipse2D.Double();
+
+  public static void main(String[] args) {
+    System.setProperty("java.awt.headless", "true");
+
+    threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    if(!threads.isThreadAllocatedMemorySupported())
+      throw new RuntimeException("This JVM can't count allocated bytes.");
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    World w = new World(800, 800);
+    Turtle[] turtles = new Turtle[TURTLES];
+    for(int i = 0; i < TURTLES; ++i)
+      turtles[i] = new Turtle(w, 400, 400);
+
+    //Run every path once first, so that class loading and the colors
+    //used below don't count
+    for(int round = 0; round < 2; ++round) {
+      move(turtles, STEPS);
+      turn(turtles, STEPS);
+      setColor(turtles, STEPS);
+      paint(w, turtles, PAINTS);
+    }
+
+    long before = allocatedBytes();
+    move(turtles, STEPS);
+    check("move", allocatedBytes() - before, STEPS, "step");
+
+    before = allocatedBytes();
+    turn(turtles, STEPS);
+    check("turn", allocatedBytes() - before, STEPS, "step");
+
+    before = allocatedBytes();
+    setColor(turtles, STEPS);
+    check("setColor", allocatedBytes() - before, STEPS, "step");
+
+    before = allocatedBytes();
+    paint(w, turtles, PAINTS);
+    check("paint", allocatedBytes() - before, PAINTS * TURTLES, "painted turtle");
+
+    System.exit(failed ? 1 : 0);
+  }
+
+  private static void move(Turtle[] turtles, int steps) {
+    for(int i = 0; i < steps; ++i) {
+      Turtle t = turtles[i % turtles.length];
+      t.move((i % 2 == 0) ? 7 : -7);
+    }
+  }
+
+  private static void turn(Turtle[] turtles, int steps) {
+    for(int i = 0; i < steps; ++i)
+      turtles[i % turtles.length].turn(13);
+  }
+
+  private static void setColor(Turtle[] turtles, int steps) {
+    for(int i = 0; i < steps; ++i)
+      turtles[i % turtles.length].setColor(i % 16, 255 - i % 16, 128);
+  }
+
+  /**
+   *  Paints the world, turning the turtles a little between paints.
+   *  The image and graphics context are made outside of the measurement.
+   */
+  private static void paint(World w, Turtle[] turtles, int paints) {
+    if(img == null) {
+      img = new BufferedImage(w.getWidth(), w.getHeight(), BufferedImage.TYPE_INT_RGB);
+      g = img.createGraphics();
+    }
+
+    for(int i = 0; i < paints; ++i) {
+      for(int j = 0; j < turtles.length; ++j)
+        turtles[j].turn(7);
+      w.paintWorld(g, circle);
+    }
+  }
+
+  private static long allocatedBytes() {
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static void check(String name, long bytes, int steps, String unit) {
+    double perStep = (double)bytes / steps;
+    boolean ok = perStep <= MAX_BYTES_PER_STEP;
+    System.out.printf("%s: %.2f bytes per %s %s%n", name, perStep, unit, ok ? "ok" : "FAILED");
+    if(!ok)
+      failed = true;
+  }
+}
@@ -0,0 +1,126 @@
+
+/**
+ * Copyright (c) 2015, Johan Ofverstedt <johan.ofverstedt@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with or without fee is hereby granted,
+ * provided that the above copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS SOFTWARE INCLUDING ALL
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN
+ * AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+import java.awt.Graphics2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+
+/**
+ *  Checks that fills and lines drawn in a track layer show up in the
+ *  painted world, and go away when the layer is hidden, and that restoring
+ *  a checkpoint puts turtles back in their layers. Runs without a window
+ *  and exits with status 1 if a check fails.
+ */
+public class LayerCheck {
+  //The layers are put together in the background, give it time to finish
+  private static final int WAIT_MILLIS = 2000;
+
+  private static boolean failed = false;
+
+  public static void main(String[] args) throws InterruptedException {
+    System.setProperty("java.awt.headless", "true");
+
+    World w = new World(400, 400);
+    w.addLayer("L");
+
+    Turtle t = new Turtle(w, 100, 100);
+    t.setVisible(false);
+    t.setLayer("L");
+    t.setColor(255, 0, 0);
+    square(t, 60);
+
+    //A line in the layer, away from the fill
+    t.disablePath();
+    t.moveTo(300, 300);
+    t.enablePath();
+    t.setColor(0, 0, 255);
+    t.moveTo(300, 350);
+
+    //A fill in the tracks below the layer
+    Turtle base = new Turtle(w, 100, 300);
+    base.setVisible(false);
+    base.setColor(0, 160, 0);
+    square(base, 60);
+
+    check("layer fill", w, 130, 130, 0xff0000);
+    check("layer line", w, 300, 325, 0x0000ff);
+    check("track fill", w, 130, 330, 0x00a000);
+
+    w.hideLayer("L");
+    check("hidden layer fill", w, 130, 130, 0xffffff);
+    w.showLayer("L");
+    check("shown layer fill", w, 130, 130, 0xff0000);
+
+    //Restoring brings back the layer each turtle drew in at the checkpoint
+    int checkpoint = w.checkpoint();
+    t.setLayer(null);
+    base.setLayer("L");
+    w.restore(checkpoint);
+    checkLayer("restored layer", t, "L");
+    checkLayer("restored world", base, null);
+
+    w.addLayer("M");
+    t.setLayer("M");
+    checkpoint = w.checkpoint();
+    w.removeLayer("M");
+    w.restore(checkpoint);
+    checkLayer("restored removed layer", t, null);
+
+    w.close();
+    System.exit(failed ? 1 : 0);
+  }
+
+  private static void checkLayer(String name, Turtle t, String layer) {
+    String found = t.getLayer();
+    boolean ok = (layer == null) ? (found == null) : layer.equals(found);
+    System.out.printf("%s: %s %s%n", name, found, ok ? "ok" : "FAILED, expected " + layer);
+    if(!ok)
+      failed = true;
+  }
+
+  private static void square(Turtle t, int side) {
+    t.beginFill();
+    for(int i = 0; i < 4; ++i) {
+      t.move(side);
+      t.turn(90);
+    }
+    t.endFill();
+  }
+
+  /**
+   *  Waits until the pixel at (x, y) of the painted world has the
+   *  expected color, or the time is up.
+   */
+  private static void check(String name, World w, int x, int y, int rgb) throws InterruptedException {
+    BufferedImage img = new BufferedImage(w.getWidth(), w.getHeight(), BufferedImage.TYPE_INT_RGB);
+    Ellipse2D.Double circle = new Ellipse2D.Double();
+
+    int found = 0;
+    long end = System.currentTimeMillis() + WAIT_MILLIS;
+    do {
+      Graphics2D g = img.createGraphics();
+      w.paintWorld(g, circle);
+      g.dispose();
+      found = img.getRGB(x, y) & 0xffffff;
+      if(found == rgb)
+        break;
+      Thread.sleep(10);
+    } while(System.currentTimeMillis() < end);
+
+    boolean ok = (found == rgb);
+    System.out.printf("%s: %06x %s%n", name, found, ok ? "ok" : "FAILED, expected " + String.format("%06x", rgb));
+    if(!ok)
+      failed = true;
+  }
+}
@@ -0,0 +1,126 @@
+
+/**
+ * Copyright (c) 2015, Johan Ofverstedt <johan.ofverstedt@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with or without fee is hereby granted,
+ * provided that the above copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS SOFTWARE INCLUDING ALL
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN
+ * AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ *  Checks that a {@link ShardedWorld} with four shard processes draws the
+ *  same tracks as one {@link World}, in particular that there are no seams
+ *  where paths cross from one shard to the next. Runs without a window
+ *  and exits with status 1 if a check fails.
+ *
+ *  <p>Paths which overlap may be drawn in another order by the shards, which
+ *  changes the anti-aliased pixels by a step or two, so small differences
+ *  are allowed. A seam shows up as a missing or cut off path.</p>
+ */
+public class ShardCheck {
+  private static final int WIDTH = 1200;
+  private static final int HEIGHT = 400;
+  private static final int SHARDS = 4;
+  private static final int TURTLES = 400;
+  private static final int TICKS = 200;
+
+  //Largest allowed difference of a color component between the two images
+  private static final int MAX_DIFFERENCE = 8;
+
+  private static boolean failed = false;
+
+  /**
+   *  Moves the turtles the same way wherever they are computed,
+   *  using only the tick and the position in the whole world.
+   */
+  public static class Wander implements ShardedWorld.Behavior {
+    public void step(Turtle t, int originX, long tick) {
+      t.setColor(0, 0, 0);
+      int x = originX + t.getXPos();
+      t.turn((int)((7 * tick + 3 * x + 5 * t.getYPos()) % 61) - 30);
+      t.move(6);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    System.setProperty("java.awt.headless", "true");
+
+    ShardedWorld sharded = new ShardedWorld(WIDTH, HEIGHT, SHARDS, Wander.class);
+    BufferedImage img;
+    try {
+      for(int i = 0; i < TURTLES; ++i)
+        sharded.addTurtle((37 * i) % WIDTH, (91 * i) % HEIGHT);
+      sharded.tick(TICKS);
+      img = sharded.getImage();
+    } finally {
+      sharded.close();
+    }
+
+    //The same simulation in a single world
+    World w = new World(WIDTH, HEIGHT);
+    Turtle[] turtles = new Turtle[TURTLES];
+    for(int i = 0; i < TURTLES; ++i)
+      turtles[i] = new Turtle(w, (37 * i) % WIDTH, (91 * i) % HEIGHT);
+    Wander behavior = new Wander();
+    for(int tick = 0; tick < TICKS; ++tick) {
+      for(int i = 0; i < TURTLES; ++i)
+        behavior.step(turtles[i], 0, tick);
+    }
+
+    int[] row = new int[WIDTH];
+    int differences = 0;
+    int borderTracks = 0;
+    for(int y = 0; y < HEIGHT; ++y) {
+      w.readTrackRow(y, row);
+      for(int x = 0; x < WIDTH; ++x) {
+        int p = img.getRGB(x, y) & 0xffffff;
+        if(nearBorder(x) && p != 0xffffff)
+          ++borderTracks;
+        if(difference(p, row[x]) > MAX_DIFFERENCE) {
+          if(differences++ < 10)
+            System.out.printf("pixel (%d, %d) is %06x but should be %06x%n", x, y, p, row[x] & 0xffffff);
+        }
+      }
+    }
+
+    check("paths cross the shard borders", borderTracks > 0);
+    check("no seams or other differences", differences == 0);
+
+    w.close();
+    System.exit(failed ? 1 : 0);
+  }
+
+  /**
+   *  Returns true for the columns within two pixels of a border between shards,
+   *  which are where the sharded world puts the strips together.
+   */
+  private static boolean nearBorder(int x) {
+    for(int i = 1; i < SHARDS; ++i) {
+      int border = (int)((long)WIDTH * i / SHARDS);
+      if(Math.abs(x - border) <= 2)
+        return true;
+    }
+    return false;
+  }
+
+  private static int difference(int rgb1, int rgb2) {
+    int d = 0;
+    for(int shift = 0; shift < 24; shift += 8)
+      d = Math.max(d, Math.abs(((rgb1 >> shift) & 0xff) - ((rgb2 >> shift) & 0xff)));
+    return d;
+  }
+
+  private static void check(String name, boolean ok) {
+    System.out.printf("%s: %s%n", name, ok ? "ok" : "FAILED");
+    if(!ok)
+      failed = true;
+  }
+}
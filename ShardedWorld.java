@@ -0,0 +1,662 @@
+/**
+ * Copyright (c) 2015, Johan Ofverstedt <johan.ofverstedt@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with or without fee is hereby granted,
+ * provided that the above copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS SOFTWARE INCLUDING ALL
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN
+ * AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  ShardedWorld is one large world whose turtles and tracks are split
+ *  between several Java processes on the same computer, so that more
+ *  turtles and larger tracks can be simulated than in a single process.
+ *
+ *  <p>The world is cut into vertical strips, one per process (shard).
+ *  Each shard runs a headless {@link World} covering its strip plus a
+ *  margin (the halo) on each side. On every tick each shard moves its
+ *  turtles with a {@link Behavior}, then trades two things with its
+ *  neighbors over local sockets: the turtles that walked into the
+ *  neighbor's strip and the paths that were drawn across the border.
+ *  The shards stay in step with each other, and the full track image is
+ *  put together from the strips when {@link #getImage()} is called.</p>
+ *
+ *  <p>A turtle must not move farther than the halo in one tick, or it
+ *  will be stopped at the edge of its shard's world.</p>
+ *
+ *  <p>Example:</p>
+ *  <pre>
+ *  public class Wander implements ShardedWorld.Behavior {
+ *    public void step(Turtle t, int originX, long tick) {
+ *      t.turn((int)(Math.random() * 60) - 30);
+ *      t.move(5);
+ *    }
+ *  }
+ *
+ *  ShardedWorld w = new ShardedWorld(4000, 2000, 4, Wander.class);
+ *  for(int i = 0; i &lt; 10000; ++i)
+ *    w.addTurtle((int)(Math.random() * 4000), (int)(Math.random() * 2000));
+ *  w.tick(1000);
+ *  BufferedImage tracks = w.getImage();
+ *  w.close();
+ *  </pre>
+ */
+public class ShardedWorld {
+  /**
+   *  Moves the turtles of a sharded world. The behavior is created in every
+   *  shard process, so the class must be public and have a public constructor
+   *  without parameters.
+   */
+  public interface Behavior {
+    /**
+     *  Moves a turtle one tick forward.
+     *
+     *  @param t The turtle. Its position is relative to the world of the shard.
+     *  @param originX The x-coordinate in the sharded world of the shard world's left edge.
+     *  @param tick The number of the current tick, starting at 0.
+     */
+    void step(Turtle t, int originX, long tick);
+  }
+
+  private static final int DEFAULT_HALO = 64;
+  private static final int CONNECT_TIMEOUT = 30000;
+
+  //Commands from the coordinator to a shard
+  private static final int CMD_ADD = 1;
+  private static final int CMD_TICK = 2;
+  private static final int CMD_IMAGE = 3;
+  private static final int CMD_QUIT = 4;
+
+  private final int width;
+  private final int height;
+  private final int[] borders;
+
+  private final Process[] processes;
+  private final Socket[] sockets;
+  private final DataInputStream[] inputs;
+  private final DataOutputStream[] outputs;
+
+  private long tickCount;
+  private int turtleCount;
+
+  /**
+   *  Constructs a sharded world and starts its shard processes,
+   *  with a halo of 64 pixels.
+   *
+   *  @param width The width of the world in pixels.
+   *  @param height The height of the world in pixels.
+   *  @param shardCount The number of shard processes.
+   *  @param behavior The class which moves the turtles.
+   *
+   *  @throws IOException If the shard processes can't be started or connected.
+   */
+  public ShardedWorld(int width, int height, int shardCount, Class<? extends Behavior> behavior) throws IOException {
+    this(width, height, shardCount, DEFAULT_HALO, behavior);
+  }
+
+  /**
+   *  Constructs a sharded world and starts its shard processes.
+   *
+   *  @param width The width of the world in pixels.
+   *  @param height The height of the world in pixels.
+   *  @param shardCount The number of shard processes.
+   *  @param halo The width in pixels of the margin each shard keeps around its strip.
+   *  @param behavior The class which moves the turtles.
+   *
+   *  @throws IOException If the shard processes can't be started or connected.
+   */
+  public ShardedWorld(int width, int height, int shardCount, int halo, Class<? extends Behavior> behavior) throws IOException {
+    if(shardCount < 1)
+      throw new RuntimeException("Invalid shard count.");
+    if(height < 1)
+      throw new RuntimeException("Invalid world height.");
+    if(halo < 1)
+      throw new RuntimeException("Invalid halo width.");
+    if(width / shardCount < halo + 2)
+      throw new RuntimeException("The world is too narrow for " + shardCount + " shards with a halo of " + halo + " pixels.");
+    if(behavior == null)
+      throw new RuntimeException("A sharded world needs a behavior.");
+
+    this.width = width;
+    this.height = height;
+
+    this.borders = new int[shardCount + 1];
+    for(int i = 0; i <= shardCount; ++i)
+      this.borders[i] = (int)((long)width * i / shardCount);
+
+    this.processes = new Process[shardCount];
+    this.sockets = new Socket[shardCount];
+    this.inputs = new DataInputStream[shardCount];
+    this.outputs = new DataOutputStream[shardCount];
+
+    //Any failure while starting, not only an IOException, must stop the started shards
+    boolean started = false;
+    ServerSocket server = new ServerSocket(0, shardCount, InetAddress.getLoopbackAddress());
+    try {
+      server.setSoTimeout(CONNECT_TIMEOUT);
+
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+      for(int i = 0; i < shardCount; ++i) {
+        ProcessBuilder builder = new ProcessBuilder(java, "-Djava.awt.headless=true",
+          "-cp", System.getProperty("java.class.path"), "ShardedWorld",
+          "--shard", Integer.toString(server.getLocalPort()), Integer.toString(i));
+        builder.inheritIO();
+        this.processes[i] = builder.start();
+      }
+
+      //Each shard says hello with its index and the port its neighbor should connect to
+      int[] peerPorts = new int[shardCount];
+      for(int i = 0; i < shardCount; ++i) {
+        Socket socket = server.accept();
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        int index = in.readInt();
+        if(index < 0 || index >= shardCount || this.sockets[index] != null)
+          throw new RuntimeException("A shard sent an invalid index " + index + ".");
+        peerPorts[index] = in.readInt();
+
+        this.sockets[index] = socket;
+        this.inputs[index] = in;
+        this.outputs[index] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      }
+
+      for(int i = 0; i < shardCount; ++i) {
+        DataOutputStream out = this.outputs[i];
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(this.borders[i]);
+        out.writeInt(this.borders[i+1]);
+        out.writeInt(halo);
+        out.writeUTF(behavior.getName());
+        out.writeBoolean(i > 0);
+        out.writeInt((i + 1 < shardCount) ? peerPorts[i+1] : -1);
+        out.flush();
+      }
+
+      for(int i = 0; i < shardCount; ++i)
+        this.inputs[i].readInt();
+      started = true;
+    } finally {
+      if(!started)
+        destroy();
+      server.close();
+    }
+  }
+
+  /**
+   *  Returns the width of the world in pixels.
+   *
+   *  @return The width of the world in pixels.
+   */
+  public int getWidth() {
+    return this.width;
+  }
+
+  /**
+   *  Returns the height of the world in pixels.
+   *
+   *  @return The height of the world in pixels.
+   */
+  public int getHeight() {
+    return this.height;
+  }
+
+  /**
+   *  Returns the number of shard processes.
+   *
+   *  @return The shard count.
+   */
+  public int getShardCount() {
+    return this.processes.length;
+  }
+
+  /**
+   *  Returns the number of turtles in all shards.
+   *
+   *  @return The turtle count.
+   */
+  public int getTurtleCount() {
+    return this.turtleCount;
+  }
+
+  /**
+   *  Returns the number of ticks run so far.
+   *
+   *  @return The tick count.
+   */
+  public long getTickCount() {
+    return this.tickCount;
+  }
+
+  /**
+   *  Adds a turtle at the given position, in the shard which owns that position.
+   *
+   *  @param x X-coordinate of the point where the turtle will start at.
+   *  @param y Y-coordinate of the point where the turtle will start at.
+   *
+   *  @throws IOException If the shard can't be reached.
+   */
+  public void addTurtle(int x, int y) throws IOException {
+    x = Math.max(0, Math.min(this.width - 1, x));
+    y = Math.max(0, Math.min(this.height - 1, y));
+
+    int shard = 0;
+    while(x >= this.borders[shard+1])
+      ++shard;
+
+    DataOutputStream out = this.outputs[shard];
+    out.writeByte(CMD_ADD);
+    out.writeInt(x);
+    out.writeInt(y);
+    out.flush();
+
+    ++this.turtleCount;
+  }
+
+  /**
+   *  Runs one tick in all shards.
+   *
+   *  @throws IOException If a shard can't be reached.
+   */
+  public void tick() throws IOException {
+    tick(1);
+  }
+
+  /**
+   *  Runs a number of ticks in all shards. The shards wait for each
+   *  other at the end of every tick.
+   *
+   *  @param count The number of ticks.
+   *
+   *  @throws IOException If a shard can't be reached.
+   */
+  public void tick(int count) throws IOException {
+    for(DataOutputStream out : this.outputs) {
+      out.writeByte(CMD_TICK);
+      out.writeInt(count);
+      out.flush();
+    }
+
+    int total = 0;
+    for(DataInputStream in : this.inputs)
+      total += in.readInt();
+
+    this.turtleCount = total;
+    this.tickCount += count;
+  }
+
+  /**
+   *  Puts together the tracks of all shards into one image.
+   *
+   *  @return The tracks of the whole world.
+   *
+   *  @throws IOException If a shard can't be reached.
+   */
+  public BufferedImage getImage() throws IOException {
+    //Let all shards start sending before reading from the first one
+    for(DataOutputStream out : this.outputs) {
+      out.writeByte(CMD_IMAGE);
+      out.flush();
+    }
+
+    BufferedImage img = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+    WritableRaster raster = img.getRaster();
+    int[] row = new int[this.width];
+
+    for(int i = 0; i < this.inputs.length; ++i) {
+      DataInputStream in = this.inputs[i];
+      int stripWidth = this.borders[i+1] - this.borders[i];
+
+      for(int y = 0; y < this.height; ++y) {
+        for(int x = 0; x < stripWidth; ++x)
+          row[x] = in.readInt();
+        raster.setDataElements(this.borders[i], y, stripWidth, 1, row);
+      }
+    }
+
+    return img;
+  }
+
+  /**
+   *  Stops all shard processes.
+   */
+  public void close() {
+    for(int i = 0; i < this.outputs.length; ++i) {
+      try {
+        if(this.outputs[i] != null) {
+          this.outputs[i].writeByte(CMD_QUIT);
+          this.outputs[i].flush();
+        }
+      } catch(IOException e) {
+        //The shard is gone already
+      }
+    }
+
+    for(Process p : this.processes) {
+      try {
+        if(p != null && !p.waitFor(5, TimeUnit.SECONDS))
+          p.destroy();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    destroy();
+  }
+
+  /**
+   *  Entry point of the shard processes. Not meant to be run by hand.
+   *
+   *  @param args <code>--shard</code>, the coordinator's port and the shard index.
+   *
+   *  @throws Exception If the shard fails.
+   */
+  public static void main(String[] args) throws Exception {
+    if(args.length != 3 || !args[0].equals("--shard")) {
+      System.err.println("ShardedWorld processes are started by the ShardedWorld class.");
+      System.exit(1);
+    }
+
+    new Shard(Integer.parseInt(args[1]), Integer.parseInt(args[2])).run();
+  }
+
+  //
+  //  Implementation details below here...
+  //
+
+  private void destroy() {
+    for(Socket socket : this.sockets) {
+      try {
+        if(socket != null)
+          socket.close();
+      } catch(IOException e) {
+        //Nothing more to do
+      }
+    }
+
+    for(Process p : this.processes) {
+      if(p != null)
+        p.destroy();
+    }
+  }
+
+  /**
+   *  Private class which runs one shard, in its own process.
+   *
+   *  <p>Neighbors exchange messages so that the lower shard of each
+   *  pair sends first and the higher one receives first, which can't
+   *  deadlock even when the messages are larger than the socket buffers.</p>
+   */
+  private static class Shard implements World.PathListener {
+    private final int coordinatorPort;
+    private final int index;
+
+    private DataInputStream coordinatorIn;
+    private DataOutputStream coordinatorOut;
+    private Socket coordinator;
+
+    private DataInputStream leftIn;
+    private DataOutputStream leftOut;
+    private DataInputStream rightIn;
+    private DataOutputStream rightOut;
+
+    private World world;
+    private Behavior behavior;
+
+    //The owned strip [ownX1, ownX2) and the world's left edge, in world coordinates
+    private int ownX1;
+    private int ownX2;
+    private int originX;
+    private long tickCount;
+
+    //Outgoing messages: paths (x1, y1, x2, y2, rgb) and turtles
+    private final Message toLeft = new Message();
+    private final Message toRight = new Message();
+
+    Shard(int coordinatorPort, int index) {
+      this.coordinatorPort = coordinatorPort;
+      this.index = index;
+    }
+
+    void run() throws Exception {
+      this.coordinator = new Socket(InetAddress.getLoopbackAddress(), this.coordinatorPort);
+      this.coordinator.setTcpNoDelay(true);
+      this.coordinatorIn = new DataInputStream(new BufferedInputStream(this.coordinator.getInputStream()));
+      this.coordinatorOut = new DataOutputStream(new BufferedOutputStream(this.coordinator.getOutputStream()));
+
+      ServerSocket peerServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+      peerServer.setSoTimeout(CONNECT_TIMEOUT);
+
+      this.coordinatorOut.writeInt(this.index);
+      this.coordinatorOut.writeInt(peerServer.getLocalPort());
+      this.coordinatorOut.flush();
+
+      int worldWidth = this.coordinatorIn.readInt();
+      int worldHeight = this.coordinatorIn.readInt();
+      this.ownX1 = this.coordinatorIn.readInt();
+      this.ownX2 = this.coordinatorIn.readInt();
+      int halo = this.coordinatorIn.readInt();
+      String behaviorName = this.coordinatorIn.readUTF();
+      boolean hasLeft = this.coordinatorIn.readBoolean();
+      int rightPort = this.coordinatorIn.readInt();
+
+      this.behavior = (Behavior)Class.forName(behaviorName).getDeclaredConstructor().newInstance();
+
+      this.originX = Math.max(0, this.ownX1 - halo);
+      this.world = new World(Math.min(worldWidth, this.ownX2 + halo) - this.originX, worldHeight);
+      this.world.disableUpdateOnChange();
+      this.world.setPathListener(this);
+
+      //Connect to the right neighbor, which is already listening, then wait for the left one
+      if(rightPort >= 0) {
+        Socket right = new Socket(InetAddress.getLoopbackAddress(), rightPort);
+        right.setTcpNoDelay(true);
+        this.rightIn = new DataInputStream(new BufferedInputStream(right.getInputStream()));
+        this.rightOut = new DataOutputStream(new BufferedOutputStream(right.getOutputStream()));
+      }
+      if(hasLeft) {
+        Socket left = peerServer.accept();
+        left.setTcpNoDelay(true);
+        this.leftIn = new DataInputStream(new BufferedInputStream(left.getInputStream()));
+        this.leftOut = new DataOutputStream(new BufferedOutputStream(left.getOutputStream()));
+      }
+      peerServer.close();
+
+      this.coordinatorOut.writeInt(0);
+      this.coordinatorOut.flush();
+
+      try {
+        while(true) {
+          int command = this.coordinatorIn.readByte();
+
+          if(command == CMD_ADD) {
+            int x = this.coordinatorIn.readInt();
+            int y = this.coordinatorIn.readInt();
+            new Turtle(this.world, x - this.originX, y);
+          } else if(command == CMD_TICK) {
+            int count = this.coordinatorIn.readInt();
+            for(int i = 0; i < count; ++i)
+              tick();
+            this.coordinatorOut.writeInt(this.world.getTurtleArray().length);
+            this.coordinatorOut.flush();
+          } else if(command == CMD_IMAGE) {
+            writeImage();
+          } else {
+            break;
+          }
+        }
+      } catch(EOFException e) {
+        //The coordinator has gone away without closing the shard
+      }
+
+      this.world.close();
+      System.exit(0);
+    }
+
+    public void pathDrawn(Turtle t, int xOld, int yOld, int xNew, int yNew) {
+      //Anti-aliasing may touch the pixels next to the line
+      int x1 = Math.min(xOld, xNew) + this.originX - 1;
+      int x2 = Math.max(xOld, xNew) + this.originX + 1;
+      int rgb = t.getColor().getRGB();
+
+      if(this.leftOut != null && x1 < this.ownX1)
+        this.toLeft.addPath(xOld + this.originX, yOld, xNew + this.originX, yNew, rgb);
+      if(this.rightOut != null && x2 >= this.ownX2)
+        this.toRight.addPath(xOld + this.originX, yOld, xNew + this.originX, yNew, rgb);
+    }
+
+    private void tick() throws IOException {
+      Turtle[] turtles = this.world.getTurtleArray();
+
+      this.world.beginBatch();
+      try {
+        for(Turtle t : turtles)
+          this.behavior.step(t, this.originX, this.tickCount);
+      } finally {
+        this.world.endBatch();
+      }
+
+      //Hand over the turtles which have left the strip
+      turtles = this.world.getTurtleArray();
+      this.world.beginBatch();
+      try {
+        for(Turtle t : turtles) {
+          int x = t.getXPos() + this.originX;
+          if(this.leftOut != null && x < this.ownX1) {
+            this.toLeft.addTurtle(t, this.originX);
+            this.world.remove(t);
+          } else if(this.rightOut != null && x >= this.ownX2) {
+            this.toRight.addTurtle(t, this.originX);
+            this.world.remove(t);
+          }
+        }
+      } finally {
+        this.world.endBatch();
+      }
+
+      if(this.leftOut != null) {
+        receive(this.leftIn);
+        this.toLeft.send(this.leftOut);
+      }
+      if(this.rightOut != null) {
+        this.toRight.send(this.rightOut);
+        receive(this.rightIn);
+      }
+
+      ++this.tickCount;
+    }
+
+    private void receive(DataInputStream in) throws IOException {
+      int pathCount = in.readInt();
+      for(int i = 0; i < pathCount; ++i) {
+        int x1 = in.readInt() - this.originX;
+        int y1 = in.readInt();
+        int x2 = in.readInt() - this.originX;
+        int y2 = in.readInt();
+        this.world.drawLine(x1, y1, x2, y2, new Color(in.readInt()));
+      }
+
+      int turtleCount = in.readInt();
+      this.world.beginBatch();
+      try {
+        for(int i = 0; i < turtleCount; ++i) {
+          int x = in.readInt() - this.originX;
+          int y = in.readInt();
+          int direction = in.readInt();
+          float size = in.readFloat();
+          int rgb = in.readInt();
+          int flags = in.readByte();
+
+          Turtle t = new Turtle(this.world, x, y);
+          t.setColor((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+          t.restoreState(t.getXPos(), t.getYPos(), direction, size, t.getColor(), t.getLimbColor(), (flags & 1) != 0, (flags & 2) != 0);
+        }
+      } finally {
+        this.world.endBatch();
+      }
+    }
+
+    private void writeImage() throws IOException {
+      int[] row = new int[this.world.getWidth()];
+      int from = this.ownX1 - this.originX;
+      int to = this.ownX2 - this.originX;
+
+      for(int y = 0; y < this.world.getHeight(); ++y) {
+        this.world.readTrackRow(y, row);
+        for(int x = from; x < to; ++x)
+          this.coordinatorOut.writeInt(row[x]);
+      }
+      this.coordinatorOut.flush();
+    }
+  }
+
+  /**
+   *  Private class which collects what one shard sends to a neighbor in a tick.
+   */
+  private static class Message {
+    private int[] paths = new int[5 * 64];
+    private int pathSize;
+    private int[] turtles = new int[6 * 16];
+    private int turtleSize;
+
+    void addPath(int x1, int y1, int x2, int y2, int rgb) {
+      if(this.pathSize + 5 > this.paths.length)
+        this.paths = Arrays.copyOf(this.paths, 2 * this.paths.length);
+
+      this.paths[this.pathSize++] = x1;
+      this.paths[this.pathSize++] = y1;
+      this.paths[this.pathSize++] = x2;
+      this.paths[this.pathSize++] = y2;
+      this.paths[this.pathSize++] = rgb;
+    }
+
+    void addTurtle(Turtle t, int originX) {
+      if(this.turtleSize + 6 > this.turtles.length)
+        this.turtles = Arrays.copyOf(this.turtles, 2 * this.turtles.length);
+
+      this.turtles[this.turtleSize++] = t.getXPos() + originX;
+      this.turtles[this.turtleSize++] = t.getYPos();
+      this.turtles[this.turtleSize++] = t.getDirection();
+      this.turtles[this.turtleSize++] = Float.floatToIntBits((float)t.getSize());
+      this.turtles[this.turtleSize++] = t.getColor().getRGB();
+      this.turtles[this.turtleSize++] = (t.isVisible() ? 1 : 0) | (t.isPathEnabled() ? 2 : 0);
+    }
+
+    void send(DataOutputStream out) throws IOException {
+      out.writeInt(this.pathSize / 5);
+      for(int i = 0; i < this.pathSize; ++i)
+        out.writeInt(this.paths[i]);
+
+      out.writeInt(this.turtleSize / 6);
+      for(int i = 0; i < this.turtleSize; i += 6) {
+        for(int k = 0; k < 5; ++k)
+          out.writeInt(this.turtles[i+k]);
+        out.writeByte(this.turtles[i+5]);
+      }
+      out.flush();
+
+      this.pathSize = 0;
+      this.turtleSize = 0;
+    }
+  }
+}
@@ -13,6 +13,7 @@
  */
 
 import java.awt.Color;
+import java.util.Arrays;
 
 /**
  *  Turtle is a class representing a fun-loving reptile residing in
@@ -33,6 +34,18 @@ public class Turtle {
   //
   public static final double RADIUS = 10.0;
 
+  /**
+   *  Fill rule where a point is inside the shape if a line from it
+   *  to the outside crosses the outline an odd number of times.
+   */
+  public static final int FILL_EVEN_ODD = 0;
+
+  /**
+   *  Fill rule where a point is inside the shape if the outline
+   *  winds around it a non-zero number of times.
+   */
+  public static final int FILL_NON_ZERO = 1;
+
   private int x;
   private int y;
   private int direction;
@@ -44,8 +57,19 @@ public class Turtle {
   
   private boolean visible;
   private boolean drawPathFlag;
-  
+
+  //Corners of the shape being filled, fillXs is null when not filling
+  private int[] fillXs;
+  private int[] fillYs;
+  private int fillCount;
+
   private World world;
+
+  //Where the world stored this turtle at its latest tick, -1 if never
+  int tickIndex = -1;
+
+  //The track layer the path is drawn in, null for the tracks of the world
+  World.TrackLayer layer;
   
   //
   //  Turtle constructors
@@ -227,8 +251,13 @@ public class Turtle {
    *  @param blue The blue component of the color. [0-255]
    */
   public void setColor(int red, int green, int blue) {
-    this.color = new Color(red, green, blue);
-    this.limbColor = this.color.brighter();
+    if(red < 0 || red > 255 || green < 0 || green > 255 || blue < 0 || blue > 255)
+      throw new RuntimeException("Color components must be in the range [0-255].");
+
+    //Colors are shared between turtles so that changing colors doesn't create garbage
+    int rgb = (red << 16) | (green << 8) | blue;
+    this.color = ColorPalette.getColor(rgb);
+    this.limbColor = ColorPalette.getLimbColor(rgb);
 
     updateWorld();
   }
@@ -275,6 +304,29 @@ public class Turtle {
   public void disablePath() {
     this.drawPathFlag = false;
   }
+
+  /**
+   *  Returns the name of the track layer the turtle draws its path in,
+   *  or <code>null</code> if it draws on the world itself.
+   *
+   *  @return The layer name.
+   */
+  public String getLayer() {
+    if(this.layer != null && this.layer.removed)
+      this.layer = null;
+    return (this.layer != null) ? this.layer.name : null;
+  }
+
+  /**
+   *  Makes the turtle draw its path in a track layer of its world.
+   *
+   *  @param name The name of the layer, or <code>null</code> to draw on the world itself.
+   *
+   *  @see World#addLayer(String)
+   */
+  public void setLayer(String name) {
+    this.layer = (name != null) ? this.world.findLayer(name) : null;
+  }
   
   /**
    *  Calculates the Euclidean distance between
@@ -355,6 +407,9 @@ public class Turtle {
     
     this.x = xNew;
     this.y = yNew;
+
+    if(this.fillXs != null)
+      addFillPoint(xNew, yNew);
     
     updateWorld();
   }
@@ -397,6 +452,59 @@ public class Turtle {
     updateWorld();
   }
 
+  /**
+   *  Starts tracing a shape to fill. Every position the turtle moves to
+   *  from now on becomes a corner of the shape, until {@link #endFill()} is called.
+   */
+  public void beginFill() {
+    this.fillXs = new int[16];
+    this.fillYs = new int[16];
+    this.fillCount = 0;
+
+    addFillPoint(this.x, this.y);
+  }
+
+  /**
+   *  Fills the shape traced since {@link #beginFill()} with the color
+   *  of the turtle, using the even-odd fill rule. The shape is closed
+   *  with a straight line back to where the fill began.
+   */
+  public void endFill() {
+    endFill(FILL_EVEN_ODD);
+  }
+
+  /**
+   *  Fills the shape traced since {@link #beginFill()} with the color
+   *  of the turtle. The shape is closed with a straight line back to
+   *  where the fill began.
+   *
+   *  @param fillRule {@link #FILL_EVEN_ODD} or {@link #FILL_NON_ZERO}.
+   */
+  public void endFill(int fillRule) {
+    if(this.fillXs == null)
+      throw new RuntimeException("endFill called without a matching beginFill.");
+    if(fillRule != FILL_EVEN_ODD && fillRule != FILL_NON_ZERO)
+      throw new RuntimeException("Invalid fill rule.");
+
+    int[] xs = this.fillXs;
+    int[] ys = this.fillYs;
+    this.fillXs = null;
+    this.fillYs = null;
+
+    this.world.fillPolygon(this, xs, ys, this.fillCount, fillRule == FILL_EVEN_ODD);
+
+    updateWorld();
+  }
+
+  /**
+   *  Returns <code>true</code> if the turtle is tracing a shape to fill.
+   *
+   *  @return Filling flag as a boolean.
+   */
+  public boolean isFilling() {
+    return this.fillXs != null;
+  }
+
   /**
    *  Turns the turtle to face the position of another turtle.
    *
@@ -409,6 +517,112 @@ public class Turtle {
   private void updateWorld() {
     this.world.turtleUpdate();  
   }
+
+  private void addFillPoint(int x, int y) {
+    //Standing still or moving along the same spot adds nothing to the shape
+    if(this.fillCount > 0 && this.fillXs[this.fillCount-1] == x && this.fillYs[this.fillCount-1] == y)
+      return;
+
+    if(this.fillCount == this.fillXs.length) {
+      this.fillXs = Arrays.copyOf(this.fillXs, 2 * this.fillCount);
+      this.fillYs = Arrays.copyOf(this.fillYs, 2 * this.fillCount);
+    }
+    this.fillXs[this.fillCount] = x;
+    this.fillYs[this.fillCount] = y;
+    ++this.fillCount;
+  }
+
+  /**
+   *  Package local method which sets all the attributes of the turtle
+   *  at once without drawing any path or updating the world.
+   *  Used by the world to restore saved states.
+   */
+  void restoreState(int x, int y, int direction, double size, Color color, Color limbColor, boolean visible, boolean drawPathFlag) {
+    this.x = x;
+    this.y = y;
+    this.direction = direction;
+    this.size = (float)size;
+    this.color = color;
+    this.limbColor = limbColor;
+    this.visible = visible;
+    this.drawPathFlag = drawPathFlag;
+  }
+
+  /**
+   *  Private class which keeps one shared {@link Color} object (and
+   *  its brighter limb color) per RGB value that turtles have been given,
+   *  in an open addressing hash table.
+   */
+  private static class ColorPalette {
+    //The table is emptied when full, to bound its size if colors keep changing
+    private static final int MAX_COLORS = 1 << 16;
+
+    private static int[] keys = new int[1024];
+    private static Color[] colors = new Color[1024];
+    private static Color[] limbColors = new Color[1024];
+    private static int count;
+
+    //The lookup may replace the arrays, so it has to happen before they are read
+
+    static synchronized Color getColor(int rgb) {
+      int index = lookup(rgb);
+      return colors[index];
+    }
+
+    static synchronized Color getLimbColor(int rgb) {
+      int index = lookup(rgb);
+      return limbColors[index];
+    }
+
+    private static int lookup(int rgb) {
+      //Keys are stored with the alpha bits set so that 0 means empty
+      int key = rgb | 0xff000000;
+      int mask = keys.length - 1;
+      int index = (key * 0x9e3779b9) >>> 15 & mask;
+
+      while(keys[index] != 0) {
+        if(keys[index] == key)
+          return index;
+        index = (index + 1) & mask;
+      }
+
+      if(2 * (count + 1) > keys.length) {
+        int capacity = (keys.length < 2 * MAX_COLORS) ? 2 * keys.length : keys.length;
+        int[] oldKeys = keys;
+        Color[] oldColors = colors;
+        Color[] oldLimbColors = limbColors;
+
+        keys = new int[capacity];
+        colors = new Color[capacity];
+        limbColors = new Color[capacity];
+        count = 0;
+
+        if(capacity > oldKeys.length) {
+          for(int i = 0; i < oldKeys.length; ++i) {
+            if(oldKeys[i] != 0)
+              insert(oldKeys[i], oldColors[i], oldLimbColors[i]);
+          }
+        }
+      }
+
+      Color color = new Color(rgb);
+      return insert(key, color, color.brighter());
+    }
+
+    private static int insert(int key, Color color, Color limbColor) {
+      int mask = keys.length - 1;
+      int index = (key * 0x9e3779b9) >>> 15 & mask;
+
+      while(keys[index] != 0)
+        index = (index + 1) & mask;
+
+      keys[index] = key;
+      colors[index] = color;
+      limbColors[index] = limbColor;
+      ++count;
+      return index;
+    }
+  }
   
   //
   //  Prebuilt movement methods
@@ -0,0 +1,429 @@
+/**
+ * Copyright (c) 2015, Johan Ofverstedt <johan.ofverstedt@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with or without fee is hereby granted,
+ * provided that the above copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS SOFTWARE INCLUDING ALL
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN
+ * AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ *  TurtleProgram is a compiled program written in a small Logo-like
+ *  language which can be run by any {@link Turtle}.
+ *
+ *  <p>The following commands are understood (case-insensitive):</p>
+ *  <ul>
+ *  <li><code>forward n</code> / <code>fd n</code> - Move forward n pixels.</li>
+ *  <li><code>back n</code> / <code>bk n</code> - Move backwards n pixels.</li>
+ *  <li><code>left n</code> / <code>lt n</code> - Turn counter-clockwise n degrees.</li>
+ *  <li><code>right n</code> / <code>rt n</code> - Turn clockwise n degrees.</li>
+ *  <li><code>penup</code> / <code>pu</code> - Stop drawing the path.</li>
+ *  <li><code>pendown</code> / <code>pd</code> - Start drawing the path.</li>
+ *  <li><code>setcolor r g b</code> - Change the color of the turtle. [0-255]</li>
+ *  <li><code>repeat n [ ... ]</code> - Run the commands in the brackets n times.</li>
+ *  <li><code>to name ... end</code> - Define a procedure which can then be run by writing its name.</li>
+ *  </ul>
+ *  <p>Everything after a <code>;</code> on a line is a comment.</p>
+ *
+ *  <p>Example:</p>
+ *  <pre>
+ *  to square
+ *    repeat 4 [ fd 50 rt 90 ]
+ *  end
+ *  repeat 36 [ square rt 10 ]
+ *  </pre>
+ *
+ *  <p>The source is compiled once into a compact array of integers which is
+ *  then interpreted without creating any new objects, so a program can be
+ *  run many times at little cost. A program instance is not meant to be
+ *  run by several threads at the same time.</p>
+ */
+public class TurtleProgram {
+  //
+  //  Instruction set
+  //
+  //  Every instruction is an opcode followed by a fixed number of operands.
+  //
+
+  private static final int OP_HALT = 0;     // -
+  private static final int OP_FORWARD = 1;  // steps
+  private static final int OP_BACK = 2;     // steps
+  private static final int OP_LEFT = 3;     // degrees
+  private static final int OP_RIGHT = 4;    // degrees
+  private static final int OP_PENUP = 5;    // -
+  private static final int OP_PENDOWN = 6;  // -
+  private static final int OP_SETCOLOR = 7; // red, green, blue
+  private static final int OP_REPEAT = 8;   // count, address after the matching OP_LOOP
+  private static final int OP_LOOP = 9;     // -
+  private static final int OP_CALL = 10;    // address of procedure
+  private static final int OP_RETURN = 11;  // -
+  private static final int OP_JUMP = 12;    // address
+
+  private static final int STACK_SIZE = 1024;
+
+  private final int[] code;
+  private final int[] stack;
+
+  private TurtleProgram(int[] code) {
+    this.code = code;
+    this.stack = new int[STACK_SIZE];
+  }
+
+  /**
+   *  Compiles the source code of a turtle program.
+   *
+   *  @param source The program source code.
+   *
+   *  @return The compiled program.
+   */
+  public static TurtleProgram compile(String source) {
+    if(source == null)
+      throw new RuntimeException("Can't compile a null program.");
+
+    return new Compiler(tokenize(source)).compileProgram();
+  }
+
+  /**
+   *  Runs the program on a turtle, step by step, so that every
+   *  movement is shown as it happens (if the world has update on change enabled).
+   *
+   *  @param t The turtle which will run the program.
+   */
+  public void run(Turtle t) {
+    if(t == null)
+      throw new RuntimeException("Can't run a program on a null turtle reference.");
+
+    execute(t);
+  }
+
+  /**
+   *  Runs the program on a turtle as fast as possible.
+   *
+   *  <p>The world is only redrawn once the program has finished, and all
+   *  the paths are drawn in a single batch.</p>
+   *
+   *  @param t The turtle which will run the program.
+   */
+  public void runToCompletion(Turtle t) {
+    if(t == null)
+      throw new RuntimeException("Can't run a program on a null turtle reference.");
+
+    World w = t.getWorld();
+    w.beginBatch();
+    try {
+      execute(t);
+    } finally {
+      w.endBatch();
+    }
+  }
+
+  /**
+   *  Returns the number of integers in the compiled code.
+   *
+   *  @return The code size.
+   */
+  public int getCodeSize() {
+    return this.code.length;
+  }
+
+  //
+  //  Implementation details below here...
+  //
+
+  /**
+   *  The interpreter loop. The stack holds return addresses
+   *  for procedure calls and (address, remaining count) pairs for
+   *  repeat loops.
+   */
+  private void execute(Turtle t) {
+    final int[] code = this.code;
+    final int[] stack = this.stack;
+    int sp = 0;
+    int pc = 0;
+
+    while(true) {
+      switch(code[pc]) {
+        case OP_HALT:
+          return;
+        case OP_FORWARD:
+          t.move(code[pc+1]);
+          pc += 2;
+          break;
+        case OP_BACK:
+          t.move(-code[pc+1]);
+          pc += 2;
+          break;
+        case OP_LEFT:
+          t.turn(-code[pc+1]);
+          pc += 2;
+          break;
+        case OP_RIGHT:
+          t.turn(code[pc+1]);
+          pc += 2;
+          break;
+        case OP_PENUP:
+          t.disablePath();
+          pc += 1;
+          break;
+        case OP_PENDOWN:
+          t.enablePath();
+          pc += 1;
+          break;
+        case OP_SETCOLOR:
+          t.setColor(code[pc+1], code[pc+2], code[pc+3]);
+          pc += 4;
+          break;
+        case OP_REPEAT:
+          if(code[pc+1] <= 0) {
+            pc = code[pc+2];
+            break;
+          }
+          if(sp + 2 > STACK_SIZE)
+            throw new RuntimeException("Turtle program stack overflow.");
+          stack[sp++] = pc + 3;
+          stack[sp++] = code[pc+1];
+          pc += 3;
+          break;
+        case OP_LOOP:
+          if(--stack[sp-1] > 0) {
+            pc = stack[sp-2];
+          } else {
+            sp -= 2;
+            pc += 1;
+          }
+          break;
+        case OP_CALL:
+          if(sp + 1 > STACK_SIZE)
+            throw new RuntimeException("Turtle program stack overflow. (Too deep recursion?)");
+          stack[sp++] = pc + 2;
+          pc = code[pc+1];
+          break;
+        case OP_RETURN:
+          pc = stack[--sp];
+          break;
+        case OP_JUMP:
+          pc = code[pc+1];
+          break;
+        default:
+          throw new RuntimeException("Invalid turtle program instruction " + code[pc] + " at " + pc + ".");
+      }
+    }
+  }
+
+  /**
+   *  Splits the source into words, treating brackets as separate
+   *  words and skipping comments.
+   */
+  private static String[] tokenize(String source) {
+    ArrayList<String> tokens = new ArrayList<String>();
+    int n = source.length();
+    int i = 0;
+
+    while(i < n) {
+      char c = source.charAt(i);
+
+      if(Character.isWhitespace(c)) {
+        ++i;
+      } else if(c == ';') {
+        while(i < n && source.charAt(i) != '\n')
+          ++i;
+      } else if(c == '[' || c == ']') {
+        tokens.add(String.valueOf(c));
+        ++i;
+      } else {
+        int start = i;
+        while(i < n) {
+          c = source.charAt(i);
+          if(Character.isWhitespace(c) || c == ';' || c == '[' || c == ']')
+            break;
+          ++i;
+        }
+        tokens.add(source.substring(start, i).toLowerCase(Locale.ROOT));
+      }
+    }
+
+    return tokens.toArray(new String[tokens.size()]);
+  }
+
+  /**
+   *  Single pass recursive descent compiler. Calls to procedures
+   *  which are not yet defined are patched when the program has been read.
+   */
+  private static class Compiler {
+    private final String[] tokens;
+    private int pos;
+
+    private int[] code = new int[64];
+    private int size;
+
+    private final HashMap<String, Integer> procedures = new HashMap<String, Integer>();
+    private final ArrayList<String> fixupNames = new ArrayList<String>();
+    private final ArrayList<Integer> fixupAddresses = new ArrayList<Integer>();
+
+    Compiler(String[] tokens) {
+      this.tokens = tokens;
+    }
+
+    TurtleProgram compileProgram() {
+      while(this.pos < this.tokens.length) {
+        if(this.tokens[this.pos].equals("to"))
+          compileProcedure();
+        else
+          compileCommand();
+      }
+      emit(OP_HALT);
+
+      for(int i = 0; i < this.fixupNames.size(); ++i) {
+        Integer address = this.procedures.get(this.fixupNames.get(i));
+        if(address == null)
+          throw new RuntimeException("Unknown command or procedure '" + this.fixupNames.get(i) + "'.");
+        this.code[this.fixupAddresses.get(i)] = address;
+      }
+
+      return new TurtleProgram(Arrays.copyOf(this.code, this.size));
+    }
+
+    private void compileProcedure() {
+      ++this.pos;
+      String name = next("procedure name");
+      if(isKeyword(name) || isNumber(name) || name.equals("[") || name.equals("]"))
+        throw new RuntimeException("Invalid procedure name '" + name + "'.");
+      if(this.procedures.containsKey(name))
+        throw new RuntimeException("Procedure '" + name + "' is defined more than once.");
+
+      //Procedures are placed inline, so jump past the body
+      emit(OP_JUMP);
+      int jumpOperand = this.size;
+      emit(0);
+
+      this.procedures.put(name, this.size);
+
+      while(true) {
+        if(this.pos >= this.tokens.length)
+          throw new RuntimeException("Missing 'end' for procedure '" + name + "'.");
+        if(this.tokens[this.pos].equals("end"))
+          break;
+        if(this.tokens[this.pos].equals("to"))
+          throw new RuntimeException("Procedures can not be defined inside procedure '" + name + "'.");
+        compileCommand();
+      }
+      ++this.pos;
+
+      emit(OP_RETURN);
+      this.code[jumpOperand] = this.size;
+    }
+
+    private void compileCommand() {
+      String word = next("command");
+
+      if(word.equals("forward") || word.equals("fd")) {
+        emit(OP_FORWARD);
+        emit(nextNumber(word));
+      } else if(word.equals("back") || word.equals("bk")) {
+        emit(OP_BACK);
+        emit(nextNumber(word));
+      } else if(word.equals("left") || word.equals("lt")) {
+        emit(OP_LEFT);
+        emit(nextNumber(word));
+      } else if(word.equals("right") || word.equals("rt")) {
+        emit(OP_RIGHT);
+        emit(nextNumber(word));
+      } else if(word.equals("penup") || word.equals("pu")) {
+        emit(OP_PENUP);
+      } else if(word.equals("pendown") || word.equals("pd")) {
+        emit(OP_PENDOWN);
+      } else if(word.equals("setcolor")) {
+        emit(OP_SETCOLOR);
+        emit(nextColorComponent(word));
+        emit(nextColorComponent(word));
+        emit(nextColorComponent(word));
+      } else if(word.equals("repeat")) {
+        compileRepeat();
+      } else if(word.equals("[") || word.equals("]") || word.equals("end") || word.equals("to") || isNumber(word)) {
+        throw new RuntimeException("Unexpected '" + word + "' in turtle program.");
+      } else {
+        emit(OP_CALL);
+        this.fixupNames.add(word);
+        this.fixupAddresses.add(this.size);
+        emit(0);
+      }
+    }
+
+    private void compileRepeat() {
+      int count = nextNumber("repeat");
+
+      if(!next("[").equals("["))
+        throw new RuntimeException("Expected '[' after 'repeat " + count + "'.");
+
+      emit(OP_REPEAT);
+      emit(count);
+      int endOperand = this.size;
+      emit(0);
+
+      while(true) {
+        if(this.pos >= this.tokens.length)
+          throw new RuntimeException("Missing ']' after 'repeat " + count + "'.");
+        if(this.tokens[this.pos].equals("]"))
+          break;
+        compileCommand();
+      }
+      ++this.pos;
+
+      emit(OP_LOOP);
+      this.code[endOperand] = this.size;
+    }
+
+    private String next(String expected) {
+      if(this.pos >= this.tokens.length)
+        throw new RuntimeException("Unexpected end of turtle program, expected " + expected + ".");
+      return this.tokens[this.pos++];
+    }
+
+    private int nextNumber(String command) {
+      String word = next("a number after '" + command + "'");
+      if(!isNumber(word))
+        throw new RuntimeException("Expected a number after '" + command + "' but found '" + word + "'.");
+      return Integer.parseInt(word);
+    }
+
+    private int nextColorComponent(String command) {
+      int value = nextNumber(command);
+      if(value < 0 || value > 255)
+        throw new RuntimeException("Color component " + value + " is outside the range [0-255].");
+      return value;
+    }
+
+    private void emit(int value) {
+      if(this.size == this.code.length)
+        this.code = Arrays.copyOf(this.code, 2 * this.code.length);
+      this.code[this.size++] = value;
+    }
+
+    private static boolean isNumber(String word) {
+      int start = (word.startsWith("-") || word.startsWith("+")) ? 1 : 0;
+      if(start == word.length() || word.length() - start > 9)
+        return false;
+      for(int i = start; i < word.length(); ++i) {
+        if(!Character.isDigit(word.charAt(i)))
+          return false;
+      }
+      return true;
+    }
+
+    private static boolean isKeyword(String word) {
+      return word.equals("forward") || word.equals("fd") || word.equals("back") || word.equals("bk") ||
+        word.equals("left") || word.equals("lt") || word.equals("right") || word.equals("rt") ||
+        word.equals("penup") || word.equals("pu") || word.equals("pendown") || word.equals("pd") ||
+        word.equals("setcolor") || word.equals("repeat") || word.equals("to") || word.equals("end");
+    }
+  }
+}
@@ -13,19 +13,44 @@
  */
 
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.geom.Ellipse2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.lang.ref.WeakReference;
 import javax.swing.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  *  World is a class representing an environment for Turtles.
  *
  *  The world is visualized as a window, and its size can be
- *  selected upon construction.
+ *  selected upon construction. When there is no screen (when Java
+ *  runs with <code>java.awt.headless=true</code>) the world works just
+ *  the same but without the window.
  *
  *  As the turtles move around, they are redrawn and they leave
  *  tracks on the background in the form of their linear path.
+ *
+ *  The view of the world can be zoomed with the mouse wheel and
+ *  panned by dragging with the mouse, which makes it possible to look
+ *  at worlds which are larger than the screen.
+ *
+ *  All worlds share one render scheduler, which repaints every changed
+ *  world at most once per screen refresh (about 60 times per second).
  */
 public class World {
   //
@@ -37,9 +62,19 @@ public class World {
   
   private CopyOnWriteArrayList<Turtle> turtles;
   private boolean updateOnChange;
+  private int batchDepth;
+  private boolean turtlesChangedInBatch;
+  private PathListener pathListener;
+  private boolean interpolation;
+
+  private ArrayList<Checkpoint> checkpoints;
+  private int checkpointLimit;
+  private int nextCheckpointId;
 
   private JFrame frame;
   private WorldCanvas canvas;
+  private volatile boolean paintRequested;
+  private volatile int changeCount;
   
   private static int worldCount = 0;
   
@@ -68,6 +103,10 @@ public class World {
     this.updateOnChange = true;
     
     this.turtles = new CopyOnWriteArrayList<Turtle>();
+
+    this.checkpoints = new ArrayList<Checkpoint>();
+    this.checkpointLimit = 16;
+    this.nextCheckpointId = 1;
     
     createWindow();
   }
@@ -79,8 +118,10 @@ public class World {
    */
   public void remove(Turtle t) {
     boolean result = this.turtles.remove(t);
-    if(result)
+    if(result) {
+      turtlesChanged();
       this.turtleUpdate(); 
+    }
   }
   
   /**
@@ -133,13 +174,396 @@ public class World {
     this.updateOnChange = false;
   }
   
+  /**
+   *  Returns <code>true</code> if progressive rendering is enabled.
+   *
+   *  @return The progressive rendering flag.
+   *
+   *  @see #enableProgressiveRendering(int)
+   */
+  public boolean isProgressiveRenderingEnabled() {
+    return this.canvas.history != null;
+  }
+
+  /**
+   *  Enables progressive rendering.
+   *
+   *  <p>Progressive rendering draws the turtle paths without anti-aliasing,
+   *  which is a lot faster when the turtles move quickly. Once no path has
+   *  been drawn for the given idle time, all the paths are drawn again with
+   *  anti-aliasing in the background and the result replaces the tracks.</p>
+   *
+   *  <p>The paths have to be remembered to be redrawn, which takes 24 bytes of
+   *  memory per path segment drawn since the latest redraw, along with a copy
+   *  of the tracks as they were after that redraw.</p>
+   *
+   *  @param idleMillis The idle time in milliseconds before the tracks are redrawn.
+   */
+  public void enableProgressiveRendering(int idleMillis) {
+    if(idleMillis < 0)
+      throw new RuntimeException("Invalid idle time.");
+
+    this.canvas.enableProgressiveRendering(idleMillis);
+  }
+
+  /**
+   *  Disables progressive rendering, so that all paths
+   *  are drawn with anti-aliasing right away.
+   */
+  public void disableProgressiveRendering() {
+    this.canvas.disableProgressiveRendering();
+  }
+
+  /**
+   *  Returns <code>true</code> if display interpolation is enabled.
+   *
+   *  @return The display interpolation flag.
+   *
+   *  @see #enableInterpolation()
+   */
+  public boolean isInterpolationEnabled() {
+    return this.interpolation;
+  }
+
+  /**
+   *  Enables display interpolation.
+   *
+   *  <p>With display interpolation the turtles glide smoothly on the screen
+   *  even when the program only moves them a few times per second. The
+   *  program calls {@link #tick()} after every step of its simulation, and
+   *  between two ticks the turtles are shown part of the way from where
+   *  they were at the previous tick to where they were at the latest one.</p>
+   *
+   *  <p>The turtles are therefore shown up to one tick behind, and may
+   *  trail the end of their tracks a little since tracks are drawn at once.</p>
+   */
+  public void enableInterpolation() {
+    this.interpolation = true;
+  }
+
+  /**
+   *  Disables display interpolation, so that the turtles
+   *  are shown exactly where they are.
+   */
+  public void disableInterpolation() {
+    this.interpolation = false;
+    this.canvas.frame = null;
+    update();
+  }
+
+  /**
+   *  Marks the end of a step of the simulation, when display
+   *  interpolation is enabled. Does nothing otherwise.
+   *
+   *  <p>The turtles will be shown moving from their positions at the
+   *  previous tick to their current positions, over the same amount of
+   *  time as passed between the previous tick and this one.</p>
+   *
+   *  @see #enableInterpolation()
+   */
+  public void tick() {
+    if(!this.interpolation)
+      return;
+
+    long now = System.nanoTime();
+    InterpolationFrame previous = this.canvas.frame;
+    long duration = (previous != null) ? Math.min(now - previous.startNanos, InterpolationFrame.MAX_NANOS) : 0;
+
+    Turtle[] turtles = getTurtleArray();
+    InterpolationFrame frame = new InterpolationFrame(turtles, now, duration);
+    for(int i = 0; i < turtles.length; ++i) {
+      Turtle t = turtles[i];
+      int j = t.tickIndex;
+
+      frame.toX[i] = t.getXPos();
+      frame.toY[i] = t.getYPos();
+      frame.toDirection[i] = t.getDirection();
+
+      //Turtles which weren't there at the previous tick start where they are
+      if(previous != null && j >= 0 && j < previous.turtles.length && previous.turtles[j] == t) {
+        frame.fromX[i] = previous.toX[j];
+        frame.fromY[i] = previous.toY[j];
+        frame.fromDirection[i] = previous.toDirection[j];
+      } else {
+        frame.fromX[i] = frame.toX[i];
+        frame.fromY[i] = frame.toY[i];
+        frame.fromDirection[i] = frame.toDirection[i];
+      }
+    }
+
+    this.canvas.frame = frame;
+    for(int i = 0; i < turtles.length; ++i)
+      turtles[i].tickIndex = i;
+
+    update();
+  }
+
+  /**
+   *  Adds a named track layer on top of all the other layers.
+   *
+   *  <p>A track layer is a transparent sheet above the tracks of the world.
+   *  Turtles which have been put in a layer with {@link Turtle#setLayer(String)}
+   *  draw their paths in that layer instead of on the world. A layer can be
+   *  cleared, hidden or moved without redrawing the paths in other layers.</p>
+   *
+   *  <p>Checkpoints, progressive rendering and saved world states only
+   *  include the tracks of the world itself, not the tracks in the layers.
+   *  A checkpoint does remember which layer each turtle draws in.</p>
+   *
+   *  @param name The name of the new layer.
+   */
+  public void addLayer(String name) {
+    if(name == null)
+      throw new RuntimeException("A layer must have a name.");
+
+    this.canvas.addLayer(name);
+    update();
+  }
+
+  /**
+   *  Removes a track layer and its tracks. Turtles which drew
+   *  in the layer go back to drawing on the world.
+   *
+   *  @param name The name of the layer.
+   */
+  public void removeLayer(String name) {
+    this.canvas.removeLayer(findLayer(name));
+    update();
+  }
+
+  /**
+   *  Erases all tracks in a layer.
+   *
+   *  @param name The name of the layer.
+   */
+  public void clearLayer(String name) {
+    this.canvas.clearLayer(findLayer(name));
+    update();
+  }
+
+  /**
+   *  Shows a hidden track layer.
+   *
+   *  @param name The name of the layer.
+   */
+  public void showLayer(String name) {
+    this.canvas.setLayerVisible(findLayer(name), true);
+    update();
+  }
+
+  /**
+   *  Hides a track layer. Turtles keep drawing in hidden
+   *  layers, and their tracks appear when the layer is shown.
+   *
+   *  @param name The name of the layer.
+   */
+  public void hideLayer(String name) {
+    this.canvas.setLayerVisible(findLayer(name), false);
+    update();
+  }
+
+  /**
+   *  Returns <code>true</code> if a track layer is shown.
+   *
+   *  @param name The name of the layer.
+   *
+   *  @return The visibility flag of the layer.
+   */
+  public boolean isLayerVisible(String name) {
+    return findLayer(name).visible;
+  }
+
+  /**
+   *  Moves a track layer to a position in the stack of layers, where
+   *  position 0 is just above the world and higher positions are on top.
+   *
+   *  @param name The name of the layer.
+   *  @param position The new position of the layer.
+   */
+  public void moveLayer(String name, int position) {
+    TrackLayer layer = findLayer(name);
+    if(position < 0 || position >= this.canvas.layers.length)
+      throw new RuntimeException("Invalid layer position.");
+
+    this.canvas.moveLayer(layer, position);
+    update();
+  }
+
+  /**
+   *  Returns the names of the track layers from the bottom to the top.
+   *
+   *  @return The layer names.
+   */
+  public String[] getLayerNames() {
+    TrackLayer[] layers = this.canvas.layers;
+    String[] names = new String[layers.length];
+    for(int i = 0; i < layers.length; ++i)
+      names[i] = layers[i].name;
+    return names;
+  }
+  
   /**
    *  Forces a repaint of the world.
+   *
+   *  <p>The repaint happens on the next tick of the render scheduler,
+   *  so many updates in a row only cause a single repaint.</p>
    */
   public void update() {
-    this.canvas.repaint();
+    this.paintRequested = true;
+    ++this.changeCount;
   }
   
+  /**
+   *  Returns the zoom factor of the view, where 1.0 shows
+   *  one pixel of the world as one pixel on the screen.
+   *
+   *  @return The zoom factor.
+   */
+  public double getZoom() {
+    return this.canvas.zoom;
+  }
+
+  /**
+   *  Sets the zoom factor of the view, keeping the point
+   *  at the center of the view in place.
+   *
+   *  @param zoom The zoom factor. (Values larger than 1.0 zoom in and smaller zoom out.)
+   */
+  public void setZoom(double zoom) {
+    this.canvas.zoomAround(zoom, 0.5 * this.canvas.getWidth(), 0.5 * this.canvas.getHeight());
+  }
+
+  /**
+   *  Pans the view so that the given point of the world
+   *  is at the center of the view.
+   *
+   *  @param x X-coordinate of the point.
+   *  @param y Y-coordinate of the point.
+   */
+  public void centerView(int x, int y) {
+    this.canvas.panTo(x - 0.5 * this.canvas.getWidth() / this.canvas.zoom, y - 0.5 * this.canvas.getHeight() / this.canvas.zoom);
+  }
+
+  /**
+   *  Resets the view to zoom factor 1.0 with the top left
+   *  corner of the world in the top left corner of the view.
+   */
+  public void resetView() {
+    this.canvas.zoom = 1.0;
+    this.canvas.panTo(0.0, 0.0);
+  }
+
+  /**
+   *  Saves the current state of the world so that it can be
+   *  brought back later with {@link #restore(int)}.
+   *
+   *  <p>The saved state includes the tracks and all the turtles, along
+   *  with the layer each turtle draws in. The tracks in the layers
+   *  (see {@link #addLayer(String)}) and the layers themselves are not
+   *  saved. Taking a checkpoint is cheap, the tracks are split into tiles
+   *  and a tile is only copied the first time it is drawn on after the
+   *  checkpoint. Only the most recent checkpoints are kept, see
+   *  {@link #setCheckpointLimit(int)}.</p>
+   *
+   *  @return An id which identifies the checkpoint.
+   */
+  public int checkpoint() {
+    if(this.checkpoints.size() == this.checkpointLimit)
+      this.checkpoints.remove(0);
+
+    Checkpoint c = new Checkpoint(this.nextCheckpointId++);
+    this.checkpoints.add(c);
+    return c.id;
+  }
+
+  /**
+   *  Brings the world back to the state it had when a checkpoint was taken.
+   *
+   *  <p>All checkpoints taken after the restored one are discarded, while
+   *  the restored checkpoint itself is kept so it can be restored again.</p>
+   *
+   *  <p>Track layers are left as they are, including what has been drawn in
+   *  them since the checkpoint. A turtle goes back to the layer it drew in,
+   *  or to the world if that layer has been removed since.</p>
+   *
+   *  @param checkpointId An id returned by {@link #checkpoint()}.
+   */
+  public void restore(int checkpointId) {
+    int index = findCheckpoint(checkpointId);
+    if(index < 0)
+      throw new RuntimeException("Checkpoint " + checkpointId + " does not exist or has been discarded.");
+
+    synchronized(this.canvas) {
+      //Undo the newest changes first so that older tile copies overwrite newer ones
+      for(int i = this.checkpoints.size() - 1; i >= index; --i)
+        this.checkpoints.get(i).restoreTiles();
+
+      this.checkpoints.get(index).restoreHistory();
+    }
+
+    while(this.checkpoints.size() > index + 1)
+      this.checkpoints.remove(this.checkpoints.size() - 1);
+
+    this.checkpoints.get(index).restoreTurtles();
+
+    //Show the restored turtles where they are instead of gliding there
+    this.canvas.frame = null;
+    update();
+  }
+
+  /**
+   *  Discards all checkpoints.
+   */
+  public void discardCheckpoints() {
+    this.checkpoints.clear();
+  }
+
+  /**
+   *  Returns the maximum number of checkpoints which are kept.
+   *
+   *  @return The checkpoint limit.
+   */
+  public int getCheckpointLimit() {
+    return this.checkpointLimit;
+  }
+
+  /**
+   *  Sets the maximum number of checkpoints which are kept.
+   *  When a new checkpoint is taken and the limit is reached,
+   *  the oldest checkpoint is discarded.
+   *
+   *  @param limit The checkpoint limit. (Must be at least 1.)
+   */
+  public void setCheckpointLimit(int limit) {
+    if(limit < 1)
+      throw new RuntimeException("Invalid checkpoint limit.");
+
+    this.checkpointLimit = limit;
+    while(this.checkpoints.size() > limit)
+      this.checkpoints.remove(0);
+  }
+
+  /**
+   *  Closes the window of the world and stops rendering it.
+   *
+   *  <p>Turtles can still move around in a closed world, but it is no
+   *  longer shown. Worlds without a window are released automatically
+   *  once they are no longer used, but closing them stops their
+   *  background rendering right away.</p>
+   */
+  public void close() {
+    RenderScheduler.getInstance().unregister(this);
+
+    final JFrame frame = this.frame;
+    if(frame != null) {
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          frame.dispose();
+        }
+      });
+    }
+  }
+
   /**
    *  Generates a string representation of the world
    *  and all the turtles in it.
@@ -187,16 +611,117 @@ public class World {
     //Only add the turtle if it doesn't already exist
     //in the world to bulletproof the class against
     //surprising behavior.
-    if(!this.turtles.contains(t))
+    if(!this.turtles.contains(t)) {
       this.turtles.add(t);
+      turtlesChanged();
+    }
   }
 
   /**
    *  Signals that a Turtle has been updated.
    */
   void turtleUpdate() {
-    if(updateOnChange)
+    if(updateOnChange && batchDepth == 0)
+      update();
+  }
+
+  /**
+   *  Package local method which fills a polygon traced by
+   *  a turtle with the turtle's color.
+   */
+  void fillPolygon(Turtle t, int[] xs, int[] ys, int count, boolean evenOdd) {
+    this.canvas.fillPolygon(layerOf(t), xs, ys, count, t.getColor(), evenOdd);
+  }
+
+  /**
+   *  Package local method which returns a number that changes
+   *  every time the world asks to be repainted.
+   */
+  int getChangeCount() {
+    return this.changeCount;
+  }
+
+  /**
+   *  Package local method which paints the tracks and the turtles
+   *  of the whole world, as they would be shown in the window at
+   *  zoom factor 1.0. Safe to call from any thread.
+   *
+   *  @param g The graphics context to paint with.
+   *  @param circle A shape the painting may use for its own purposes.
+   */
+  void paintWorld(Graphics2D g, Ellipse2D.Double circle) {
+    this.canvas.paintWorld(g, circle);
+  }
+
+  /**
+   *  Package local method which starts a batch of drawing operations.
+   *
+   *  <p>While a batch is open the world is not redrawn on turtle changes.
+   *  Batches may be nested and must always be closed with a matching call
+   *  to {@link #endBatch()}.</p>
+   */
+  void beginBatch() {
+    ++this.batchDepth;
+  }
+
+  /**
+   *  Package local method which ends a batch of drawing operations
+   *  and redraws the world once the outermost batch is closed.
+   */
+  void endBatch() {
+    if(this.batchDepth == 0)
+      throw new RuntimeException("endBatch called without a matching beginBatch.");
+
+    if(--this.batchDepth == 0) {
+      if(this.turtlesChangedInBatch)
+        turtlesChanged();
       update();
+    }
+  }
+
+  /**
+   *  Package local method which returns the turtles in the world.
+   *  The returned array must not be modified.
+   */
+  Turtle[] getTurtleArray() {
+    if(this.turtlesChangedInBatch)
+      return this.turtles.toArray(new Turtle[this.turtles.size()]);
+    return this.canvas.turtles;
+  }
+
+  /**
+   *  Package local method which copies one row of the tracks into an array.
+   */
+  void readTrackRow(int y, int[] row) {
+    synchronized(this.canvas) {
+      this.canvas.img.getRaster().getDataElements(0, y, this.width, 1, row);
+    }
+  }
+
+  /**
+   *  Package local method which replaces one row of the tracks.
+   *  Call {@link #tracksReplaced()} after the last row has been written.
+   */
+  void writeTrackRow(int y, int[] row) {
+    synchronized(this.canvas) {
+      beforeTrackChange(0, y, this.width - 1, y);
+      this.canvas.img.getRaster().setDataElements(0, y, this.width, 1, row);
+      this.canvas.tracksChanged(0, y, this.width - 1, y);
+    }
+  }
+
+  /**
+   *  Package local method which signals that the tracks have been
+   *  replaced by other means than drawing paths.
+   */
+  void tracksReplaced() {
+    synchronized(this.canvas) {
+      //The old path history doesn't lead to the new tracks
+      if(this.canvas.history != null)
+        this.canvas.history = new TrackHistory(this.canvas.copyImage());
+    }
+    this.canvas.frame = null;
+    update();
   }
 
   /**
@@ -204,81 +729,638 @@ public class World {
    *  an old position to the new for a given turtle.
    */
   void drawPath(Turtle t, int xOld, int yOld, int xNew, int yNew) {
-    this.canvas.drawLine(xOld, yOld, xNew, yNew, t.getColor());
+    this.canvas.drawLine(layerOf(t), xOld, yOld, xNew, yNew, t.getColor());
+
+    if(this.pathListener != null)
+      this.pathListener.pathDrawn(t, xOld, yOld, xNew, yNew);
+  }
+
+  /**
+   *  Package local method which draws a line on the tracks
+   *  which doesn't belong to any turtle in this world.
+   */
+  void drawLine(int x1, int y1, int x2, int y2, Color color) {
+    this.canvas.drawLine(null, x1, y1, x2, y2, color);
+  }
+
+  /**
+   *  Package local method which returns the track layer with the given name.
+   */
+  TrackLayer findLayer(String name) {
+    TrackLayer[] layers = this.canvas.layers;
+    for(int i = 0; i < layers.length; ++i) {
+      if(layers[i].name.equals(name))
+        return layers[i];
+    }
+    throw new RuntimeException("There is no layer named " + name + ".");
+  }
+
+  /**
+   *  Package local class for a named track layer, a transparent image
+   *  above the tracks of the world. Turtles refer to their layer directly.
+   */
+  static class TrackLayer {
+    final String name;
+    final BufferedImage img;
+    final Graphics2D graphics;
+    volatile boolean visible;
+    boolean removed;
+
+    //Bounding box (inclusive) of everything drawn since the layer was cleared,
+    //empty when x1 > x2. Only this part has to be recomposited when the layer changes.
+    volatile int x1;
+    volatile int y1;
+    volatile int x2;
+    volatile int y2;
+
+    TrackLayer(String name, int width, int height) {
+      this.name = name;
+      this.img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+      this.graphics = this.img.createGraphics();
+      this.graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      this.visible = true;
+      this.x1 = Integer.MAX_VALUE;
+      this.y1 = Integer.MAX_VALUE;
+      this.x2 = Integer.MIN_VALUE;
+      this.y2 = Integer.MIN_VALUE;
+    }
+
+    void include(int x1, int y1, int x2, int y2) {
+      this.x1 = Math.max(0, Math.min(this.x1, x1));
+      this.y1 = Math.max(0, Math.min(this.y1, y1));
+      this.x2 = Math.min(this.img.getWidth() - 1, Math.max(this.x2, x2));
+      this.y2 = Math.min(this.img.getHeight() - 1, Math.max(this.y2, y2));
+    }
+  }
+
+  /**
+   *  Package local interface for code which needs to know
+   *  about every path drawn by the turtles in a world.
+   */
+  interface PathListener {
+    void pathDrawn(Turtle t, int xOld, int yOld, int xNew, int yNew);
+  }
+
+  /**
+   *  Package local method which sets the listener called after each
+   *  path drawn by a turtle, or removes it if <code>null</code>.
+   */
+  void setPathListener(PathListener listener) {
+    this.pathListener = listener;
   }
   
+  /**
+   *  Package local method which must be called before the tracks
+   *  are drawn on inside the given rectangle (inclusive bounds),
+   *  so that the most recent checkpoint can save the old contents.
+   */
+  void beforeTrackChange(int x1, int y1, int x2, int y2) {
+    if(!this.checkpoints.isEmpty())
+      this.checkpoints.get(this.checkpoints.size() - 1).saveTiles(x1, y1, x2, y2);
+  }
+
+  /**
+   *  Returns the layer a turtle draws in, or null for the tracks of the world.
+   */
+  private TrackLayer layerOf(Turtle t) {
+    TrackLayer layer = t.layer;
+    if(layer != null && layer.removed) {
+      //The layer has been removed since the turtle was put in it
+      t.layer = null;
+      return null;
+    }
+    return layer;
+  }
+
+  /**
+   *  Hands the canvas a new array of the turtles, so that
+   *  painting them doesn't have to create an iterator.
+   */
+  private void turtlesChanged() {
+    //Adding many turtles in a batch only makes one array
+    if(this.batchDepth > 0) {
+      this.turtlesChangedInBatch = true;
+      return;
+    }
+
+    this.turtlesChangedInBatch = false;
+    this.canvas.turtles = this.turtles.toArray(new Turtle[this.turtles.size()]);
+  }
+
+  private int findCheckpoint(int checkpointId) {
+    for(int i = 0; i < this.checkpoints.size(); ++i) {
+      if(this.checkpoints.get(i).id == checkpointId)
+        return i;
+    }
+    return -1;
+  }
+
   /**
    *  Creates the world window and sets up the canvas
    *  which is used to draw the world and turtles.
    */
   private void createWindow() {
+    this.canvas = new WorldCanvas(this.width, this.height);
+
+    //Without a screen (on a server for example) the world lives on without a window
+    if(GraphicsEnvironment.isHeadless()) {
+      RenderScheduler.getInstance().register(this);
+      return;
+    }
+
     String worldTitle = "World";
     if(++worldCount > 1)
       worldTitle += (" " + worldCount);
+
+    //Stop rendering the world when its window is closed
+    WindowAdapter closeListener = new WindowAdapter() {
+      public void windowClosed(WindowEvent e) {
+        RenderScheduler.getInstance().unregister(World.this);
+      }
+    };
     
     this.frame = new JFrame(worldTitle);
     
     this.frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-    this.frame.setResizable(false);
+    this.frame.addWindowListener(closeListener);
+    this.frame.setResizable(true);
     this.frame.setLocation(32, 32);
 
-    this.canvas = new WorldCanvas(this.width, this.height, this.turtles);
+    //Don't let large worlds open a window larger than the screen
+    Rectangle screen = GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds();
+    this.canvas.setPreferredSize(new Dimension(Math.min(this.width, screen.width - 64), Math.min(this.height, screen.height - 96)));
     
     this.frame.add(this.canvas);
     this.frame.pack();
     this.frame.setVisible(true);
 
-    this.frame.repaint();
+    RenderScheduler.getInstance().register(this);
+    update();
   }
   
   /**
    *  Private class which implements the drawing
    *  facilities of the World class and maintains
    *  the current persistent turtle tracks.
+   *
+   *  The canvas shows the world through a view which can be zoomed
+   *  and panned. Zoomed out views are drawn from a mipmap of the tracks.
    */
   private class WorldCanvas extends JPanel {
+    private static final double MIN_ZOOM = 1.0 / 64.0;
+    private static final double MAX_ZOOM = 32.0;
+
     private BufferedImage img;
+    private Graphics2D imgGraphics;
+    private TrackMipmap mipmap;
     private Color bgrColor;
-    private CopyOnWriteArrayList<Turtle> turtles;
+    private volatile Turtle[] turtles;
     private static final long serialVersionUID = 42L;
 
-    WorldCanvas(int width, int height, CopyOnWriteArrayList<Turtle> turtles) {
+    //Reused for every circle to avoid creating garbage while painting
+    private final Ellipse2D.Double circle = new Ellipse2D.Double();
+
+    //Images of the circles turtles are made of, shared by all painting threads
+    private final CircleSprites sprites = new CircleSprites();
+
+    //Progressive rendering state, history is null when it's disabled
+    private TrackHistory history;
+    private long idleNanos;
+    private volatile long lastTrackChange;
+    private boolean redrawRunning;
+
+    //Set while a worker brings the flattened image and the mipmap up to date
+    private boolean refreshRunning;
+
+    //Named track layers from the bottom up, and the cache of the tracks
+    //and the visible layers flattened, which is null when there are no layers
+    private volatile TrackLayer[] layers;
+    private volatile LayerCompositor compositor;
+
+    //Turtle positions at the two latest ticks, null unless interpolating
+    private volatile InterpolationFrame frame;
+
+    //View position (the world point in the top left corner) and zoom factor
+    private double panX;
+    private double panY;
+    private double zoom;
+
+    WorldCanvas(int width, int height) {
       this.img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      this.imgGraphics = this.img.createGraphics();
+      this.imgGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      this.mipmap = new TrackMipmap(this.img);
       this.bgrColor = new Color(255, 255, 255);
-      this.turtles = turtles;
+      this.turtles = new Turtle[0];
+      this.layers = new TrackLayer[0];
+      this.zoom = 1.0;
       
       this.setPreferredSize(new Dimension(width, height));
+
+      MouseAdapter viewControl = new MouseAdapter() {
+        private int lastX;
+        private int lastY;
+
+        public void mousePressed(MouseEvent e) {
+          this.lastX = e.getX();
+          this.lastY = e.getY();
+        }
+
+        public void mouseDragged(MouseEvent e) {
+          panTo(panX - (e.getX() - this.lastX) / zoom, panY - (e.getY() - this.lastY) / zoom);
+          this.lastX = e.getX();
+          this.lastY = e.getY();
+        }
+
+        public void mouseWheelMoved(MouseWheelEvent e) {
+          zoomAround(zoom * Math.pow(1.25, -e.getPreciseWheelRotation()), e.getX(), e.getY());
+        }
+      };
+      this.addMouseListener(viewControl);
+      this.addMouseMotionListener(viewControl);
+      this.addMouseWheelListener(viewControl);
       
       clear();
     }
+
+    //
+    //  View control
+    //
+
+    public void zoomAround(double newZoom, double viewX, double viewY) {
+      newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, newZoom));
+
+      //Keep the world point under (viewX, viewY) in place
+      double worldX = this.panX + viewX / this.zoom;
+      double worldY = this.panY + viewY / this.zoom;
+      this.zoom = newZoom;
+      panTo(worldX - viewX / newZoom, worldY - viewY / newZoom);
+    }
+
+    public void panTo(double x, double y) {
+      //Keep as much of the world as possible inside the view
+      double slackX = this.img.getWidth() - getWidth() / this.zoom;
+      double slackY = this.img.getHeight() - getHeight() / this.zoom;
+      this.panX = Math.max(Math.min(0.0, slackX), Math.min(Math.max(0.0, slackX), x));
+      this.panY = Math.max(Math.min(0.0, slackY), Math.min(Math.max(0.0, slackY), y));
+
+      World.this.update();
+    }
     
     //
     //  Persistent drawing methods
     //
     
-    public void clear() {
-      Graphics2D g = this.img.createGraphics();
-      
-      g.setColor(this.bgrColor);
-      g.fillRect(0, 0, this.img.getWidth(), this.img.getHeight());
-      
-      g.dispose();
+    public synchronized void clear() {
+      beforeTrackChange(0, 0, this.img.getWidth() - 1, this.img.getHeight() - 1);
+
+      //Nothing before a clear needs to be redrawn
+      if(this.history != null)
+        this.history = new TrackHistory(null);
+
+      this.imgGraphics.setColor(this.bgrColor);
+      this.imgGraphics.fillRect(0, 0, this.img.getWidth(), this.img.getHeight());
+
+      tracksChanged(0, 0, this.img.getWidth() - 1, this.img.getHeight() - 1);
     }
-    
-    public void drawLine(int x1, int y1, int x2, int y2, Color color) {
-      Graphics2D g = this.img.createGraphics();
-      
-      //Enable anti-aliasing to make the lines look pretty
-      Object previousAntiAliasHint = g.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+
+    public synchronized void drawLine(TrackLayer layer, int x1, int y1, int x2, int y2, Color color) {
+      //A layer removed by another thread while the turtle moved counts as no layer
+      if(layer != null && !layer.removed) {
+        layer.graphics.setColor(color);
+        layer.graphics.drawLine(x1, y1, x2, y2);
+        layerChanged(layer, Math.min(x1, x2) - 1, Math.min(y1, y2) - 1, Math.max(x1, x2) + 1, Math.max(y1, y2) + 1);
+        return;
+      }
+
+      //Anti-aliasing may touch the pixels next to the line
+      beforeTrackChange(Math.min(x1, x2) - 1, Math.min(y1, y2) - 1, Math.max(x1, x2) + 1, Math.max(y1, y2) + 1);
+
+      //The graphics context is kept for the lifetime of the image, with
+      //anti-aliasing enabled unless progressive rendering is enabled
+      this.imgGraphics.setColor(color);
+      this.imgGraphics.drawLine(x1, y1, x2, y2);
+
+      if(this.history != null) {
+        this.history.addLine(x1, y1, x2, y2, color.getRGB());
+        this.lastTrackChange = System.nanoTime();
+      }
+
+      tracksChanged(Math.min(x1, x2) - 1, Math.min(y1, y2) - 1, Math.max(x1, x2) + 1, Math.max(y1, y2) + 1);
+    }
+
+    public synchronized void fillPolygon(TrackLayer layer, int[] xs, int[] ys, int count, Color color, boolean evenOdd) {
+      if(count < 3)
+        return;
+
+      int x1 = xs[0], y1 = ys[0], x2 = xs[0], y2 = ys[0];
+      for(int i = 1; i < count; ++i) {
+        x1 = Math.min(x1, xs[i]);
+        y1 = Math.min(y1, ys[i]);
+        x2 = Math.max(x2, xs[i]);
+        y2 = Math.max(y2, ys[i]);
+      }
+
+      if(layer != null && !layer.removed) {
+        //Layers keep alpha, the filled pixels must be opaque
+        PolygonFiller.fill(layer.img.getRaster(), xs, ys, count, color.getRGB() | 0xff000000, evenOdd);
+        layerChanged(layer, x1, y1, x2, y2);
+        return;
+      }
+
+      beforeTrackChange(x1, y1, x2, y2);
+
+      PolygonFiller.fill(this.img.getRaster(), xs, ys, count, color.getRGB() & 0xffffff, evenOdd);
+
+      if(this.history != null) {
+        this.history.addFill(xs, ys, count, color.getRGB(), evenOdd);
+        this.lastTrackChange = System.nanoTime();
+      }
+
+      tracksChanged(x1, y1, x2, y2);
+    }
+
+    /**
+     *  Marks a rectangle (inclusive bounds) of the tracks of the world as changed,
+     *  in the flattened cache if there are layers and otherwise in the mipmap.
+     */
+    public void tracksChanged(int x1, int y1, int x2, int y2) {
+      LayerCompositor c = this.compositor;
+      if(c != null)
+        c.markDirty(x1, y1, x2, y2);
+      else
+        this.mipmap.markDirty(x1, y1, x2, y2);
+    }
+
+    private void layerChanged(TrackLayer layer, int x1, int y1, int x2, int y2) {
+      layer.include(x1, y1, x2, y2);
+      if(layer.visible)
+        this.compositor.markDirty(x1, y1, x2, y2);
+    }
+
+    /**
+     *  Marks everything a layer has drawn as changed in the flattened cache.
+     */
+    private void layerContentsChanged(TrackLayer layer) {
+      if(layer.x1 <= layer.x2)
+        this.compositor.markDirty(layer.x1, layer.y1, layer.x2, layer.y2);
+    }
+
+    //
+    //  Track layers
+    //
+
+    public synchronized void addLayer(String name) {
+      for(int i = 0; i < this.layers.length; ++i) {
+        if(this.layers[i].name.equals(name))
+          throw new RuntimeException("There already is a layer named " + name + ".");
+      }
+
+      //The flattened cache is made with the first layer, and starts out as a copy of the tracks
+      if(this.compositor == null) {
+        LayerCompositor c = new LayerCompositor(this.img.getWidth(), this.img.getHeight());
+        c.markDirty(0, 0, this.img.getWidth() - 1, this.img.getHeight() - 1);
+        c.update(this.img, this.layers, this.mipmap);
+        this.compositor = c;
+        this.mipmap.setImage(c.getImage());
+      }
+
+      TrackLayer[] newLayers = Arrays.copyOf(this.layers, this.layers.length + 1);
+      newLayers[this.layers.length] = new TrackLayer(name, this.img.getWidth(), this.img.getHeight());
+      this.layers = newLayers;
+    }
+
+    public synchronized void removeLayer(TrackLayer layer) {
+      TrackLayer[] newLayers = new TrackLayer[this.layers.length - 1];
+      for(int i = 0, j = 0; i < this.layers.length; ++i) {
+        if(this.layers[i] != layer)
+          newLayers[j++] = this.layers[i];
+      }
+      this.layers = newLayers;
+      layer.removed = true;
+      layer.graphics.dispose();
+
+      if(newLayers.length == 0) {
+        //Without layers the tracks are shown directly again
+        this.compositor = null;
+        this.mipmap.setImage(this.img);
+      } else if(layer.visible) {
+        layerContentsChanged(layer);
+      }
+    }
+
+    public synchronized void clearLayer(TrackLayer layer) {
+      if(layer.x1 > layer.x2)
+        return;
+
+      //Only the part which has been drawn on needs to be erased
+      Composite previousComposite = layer.graphics.getComposite();
+      layer.graphics.setComposite(AlphaComposite.Clear);
+      layer.graphics.fillRect(layer.x1, layer.y1, layer.x2 - layer.x1 + 1, layer.y2 - layer.y1 + 1);
+      layer.graphics.setComposite(previousComposite);
+
+      if(layer.visible)
+        layerContentsChanged(layer);
+      layer.x1 = layer.y1 = Integer.MAX_VALUE;
+      layer.x2 = layer.y2 = Integer.MIN_VALUE;
+    }
+
+    public synchronized void setLayerVisible(TrackLayer layer, boolean visible) {
+      if(layer.visible == visible)
+        return;
+
+      layer.visible = visible;
+      layerContentsChanged(layer);
+    }
+
+    public synchronized void moveLayer(TrackLayer layer, int position) {
+      TrackLayer[] newLayers = new TrackLayer[this.layers.length];
+      for(int i = 0, j = 0; i < this.layers.length; ++i) {
+        if(this.layers[i] == layer)
+          continue;
+        if(j == position)
+          ++j;
+        newLayers[j++] = this.layers[i];
+      }
+      newLayers[position] = layer;
+      this.layers = newLayers;
+
+      //Only the pixels the layer covers can look different
+      if(layer.visible)
+        layerContentsChanged(layer);
+    }
+
+    /**
+     *  Returns the image of the tracks as they are shown, with
+     *  the visible layers composited on top if there are any.
+     *  The layers are composited by the render workers, so the
+     *  image may be one tick behind the latest drawing.
+     */
+    private BufferedImage shownTracks() {
+      LayerCompositor c = this.compositor;
+      return (c != null) ? c.getImage() : this.img;
+    }
+
+    /**
+     *  Runs on a worker thread. Composites the layers and recomputes the
+     *  mipmap levels for the tiles changed since the last refresh.
+     */
+    private void refreshTracks() {
+      LayerCompositor c = this.compositor;
+      if(c != null)
+        c.update(this.img, this.layers, this.mipmap);
+      this.mipmap.update();
+
+      World.this.update();
+    }
+
+    //
+    //  Progressive rendering
+    //
+
+    public synchronized void enableProgressiveRendering(int idleMillis) {
+      //The current tracks are the starting point of the redraw
+      if(this.history == null)
+        this.history = new TrackHistory(copyImage());
+      this.imgGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+      this.idleNanos = idleMillis * 1000000L;
+      this.lastTrackChange = System.nanoTime();
+    }
+
+    public synchronized void disableProgressiveRendering() {
+      this.history = null;
+      this.imgGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    }
+
+    /**
+     *  Called by the render scheduler on every tick. Hands the refresh of
+     *  changed tiles, and a redraw of the tracks when one is due, to the
+     *  worker threads, so that painting only has to show finished images.
+     */
+    public void startBackgroundWork(ExecutorService workers) {
+      startRefresh(workers);
+      startRedraw(workers);
+    }
+
+    private void startRefresh(ExecutorService workers) {
+      LayerCompositor c = this.compositor;
+      synchronized(this) {
+        if(this.refreshRunning || !((c != null && c.isDirty()) || this.mipmap.isDirty()))
+          return;
+        this.refreshRunning = true;
+      }
+
+      workers.execute(new Runnable() {
+        public void run() {
+          try {
+            refreshTracks();
+          } finally {
+            synchronized(WorldCanvas.this) {
+              refreshRunning = false;
+            }
+          }
+        }
+      });
+    }
+
+    private void startRedraw(ExecutorService workers) {
+      synchronized(this) {
+        if(this.redrawRunning || this.history == null || !this.history.needsRedraw)
+          return;
+        if(System.nanoTime() - this.lastTrackChange < this.idleNanos)
+          return;
+        this.redrawRunning = true;
+      }
+
+      workers.execute(new Runnable() {
+        public void run() {
+          try {
+            redrawIfIdle();
+          } finally {
+            synchronized(WorldCanvas.this) {
+              redrawRunning = false;
+            }
+          }
+        }
+      });
+    }
+
+    public synchronized BufferedImage copyImage() {
+      BufferedImage copy = new BufferedImage(this.img.getWidth(), this.img.getHeight(), BufferedImage.TYPE_INT_RGB);
+      copy.setData(this.img.getRaster());
+      return copy;
+    }
+
+    /**
+     *  Runs on a worker thread. Redraws the history with anti-aliasing
+     *  into a new image and swaps it in, if the tracks have been left
+     *  unchanged for long enough.
+     */
+    private void redrawIfIdle() {
+      TrackHistory h;
+      int[] data;
+      int size;
+      int version;
+
+      synchronized(this) {
+        h = this.history;
+        if(h == null || !h.needsRedraw || System.nanoTime() - this.lastTrackChange < this.idleNanos)
+          return;
+
+        data = h.data;
+        size = h.size;
+        version = h.version;
+      }
+
+      //The slow part runs without holding the lock, turtles may keep drawing meanwhile
+      BufferedImage redrawn = new BufferedImage(this.img.getWidth(), this.img.getHeight(), BufferedImage.TYPE_INT_RGB);
+      Graphics2D redrawnGraphics = redrawn.createGraphics();
+      if(h.base != null) {
+        redrawnGraphics.drawImage(h.base, 0, 0, null);
+      } else {
+        redrawnGraphics.setColor(this.bgrColor);
+        redrawnGraphics.fillRect(0, 0, redrawn.getWidth(), redrawn.getHeight());
+      }
+      redrawnGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      TrackHistory.replay(redrawn, redrawnGraphics, data, 0, size);
+      redrawnGraphics.dispose();
+
+      //The redrawn image is the base of the next redraw, so the history
+      //only has to keep what is drawn after it. The tracks get a copy.
+      BufferedImage tracks = new BufferedImage(redrawn.getWidth(), redrawn.getHeight(), BufferedImage.TYPE_INT_RGB);
+      tracks.setData(redrawn.getRaster());
+      Graphics2D g = tracks.createGraphics();
       g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-      
-      g.setColor(color);
-      g.drawLine(x1, y1, x2, y2);
-      
-      //Restore previous anti-aliasing mode
-      g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, previousAntiAliasHint);
-      
-      g.dispose();
+
+      synchronized(this) {
+        //Give up if the history was replaced or cut short.
+        //The scheduler will try again later.
+        if(this.history != h || h.version != version) {
+          g.dispose();
+          return;
+        }
+
+        //Catch up with the segments drawn during the redraw and swap
+        TrackHistory.replay(tracks, g, h.data, size, h.size);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+
+        this.imgGraphics.dispose();
+        this.imgGraphics = g;
+        this.img = tracks;
+        if(this.compositor != null)
+          this.compositor.markDirty(0, 0, tracks.getWidth() - 1, tracks.getHeight() - 1);
+        else
+          this.mipmap.setImage(tracks);
+
+        //The catch up segments are already anti-aliased, they are only kept
+        //for the next redraw. A checkpoint holding the old history starts
+        //over from the restored tracks, see Checkpoint.restoreHistory().
+        TrackHistory next = new TrackHistory(redrawn);
+        next.addRecords(h.data, size, h.size);
+        this.history = next;
+      }
+
+      World.this.update();
     }
     
     //
@@ -292,57 +1374,120 @@ public class World {
       return Math.sin(angle) * radius;
     }
     
-    private void fillCenteredCircle(Graphics2D g, double x, double y, double radius) {
-      double diameter = 2.0 * radius;
-      g.fill(new Ellipse2D.Double(x-radius, y-radius, diameter, diameter));
-      //g.fillOval(x - radius, y - radius, diameter, diameter);
+    /**
+     *  Fills a circle by copying an image of it, since filling a shape makes
+     *  Java2D create garbage. Circles too large to keep images of are filled
+     *  as shapes. The coordinates are in pixels of the graphics context.
+     */
+    private void fillCenteredCircle(Graphics2D g, Ellipse2D.Double circle, Color color, double x, double y, double radius) {
+      if(radius > CircleSprites.MAX_RADIUS) {
+        double diameter = 2.0 * radius;
+        circle.setFrame(x-radius, y-radius, diameter, diameter);
+        g.setColor(color);
+        g.fill(circle);
+        return;
+      }
+
+      //The center is rounded to a fraction of a pixel, the image makes up the rest
+      int steps = CircleSprites.STEPS;
+      int sx = (int)Math.round(x * steps);
+      int sy = (int)Math.round(y * steps);
+      BufferedImage sprite = this.sprites.getCircle(color.getRGB(), radius, Math.floorMod(sx, steps), Math.floorMod(sy, steps));
+      int center = sprite.getWidth() / 2;
+      g.drawImage(sprite, Math.floorDiv(sx, steps) - center, Math.floorDiv(sy, steps) - center, null);
     }
     
-    private void paintTurtle(Graphics g, Turtle t) {
-      final double RADIUS = Turtle.RADIUS * t.getSize();
+    /**
+     *  Paints a turtle at a position in pixels of the graphics context,
+     *  with its size multiplied by a scale factor.
+     */
+    private void paintTurtle(Graphics2D g, Ellipse2D.Double circle, Turtle t, double xPos, double yPos, double direction, double scale) {
+      final double RADIUS = Turtle.RADIUS * t.getSize() * scale;
       final double HEAD_RADIUS = (5.0/Turtle.RADIUS) * RADIUS;
       final double LEG_RADIUS = (3.0/Turtle.RADIUS) * RADIUS;
       
       if(!t.isVisible())
         return;
 
-      Graphics2D g2 = (Graphics2D)g;
-      
-      int xPos = t.getXPos();
-      int yPos = t.getYPos();
-      double dirRads = (Math.PI/180.0) * t.getDirection();
+      double dirRads = (Math.PI/180.0) * direction;
       
       Color color = t.getColor();
       Color limbColor = t.getLimbColor();
       
-      g.setColor(limbColor);
-
       //Draw legs
       for(int i = 0; i < 4; ++i) {
         double legAngle = dirRads + 2.0 * Math.PI * ((i+1)/5.0);
         double legXPos = xPos + circularXOffset(legAngle, RADIUS+(1.0/Turtle.RADIUS) * RADIUS);
         double legYPos = yPos + circularYOffset(legAngle, RADIUS+(1.0/Turtle.RADIUS) * RADIUS);
-        fillCenteredCircle(g2, legXPos, legYPos, LEG_RADIUS);
+        fillCenteredCircle(g, circle, limbColor, legXPos, legYPos, LEG_RADIUS);
       }
       
       //Draw head
       double headXPos = xPos + circularXOffset(dirRads, RADIUS+(2.0/Turtle.RADIUS) * RADIUS);
       double headYPos = yPos + circularYOffset(dirRads, RADIUS+(2.0/Turtle.RADIUS) * RADIUS);
-      fillCenteredCircle(g2, headXPos, headYPos, HEAD_RADIUS);
+      fillCenteredCircle(g, circle, limbColor, headXPos, headYPos, HEAD_RADIUS);
 
       //Draw eyes
-      g.setColor(Color.BLACK);
       for(int i = 1; i <= 2; ++i) {
         double angleFraction = (i == 1) ? (-1.0) : (1.0);
         double eyeAngle = dirRads + 2.0 * Math.PI * (angleFraction / 8.0);
         double eyeXPos = headXPos + circularXOffset(eyeAngle, HEAD_RADIUS * 0.75);
         double eyeYPos = headYPos + circularYOffset(eyeAngle, HEAD_RADIUS * 0.75);
-        fillCenteredCircle(g2, eyeXPos, eyeYPos, HEAD_RADIUS * 0.15);
+        fillCenteredCircle(g, circle, Color.BLACK, eyeXPos, eyeYPos, HEAD_RADIUS * 0.15);
       }
 
       //Draw body
-      g.setColor(color);
-      fillCenteredCircle(g2, xPos, yPos, RADIUS);
+      fillCenteredCircle(g, circle, color, xPos, yPos, RADIUS);
+    }
+    
+    /**
+     *  Paints the tracks and turtles of the whole world at their actual size,
+     *  ignoring the view. May be called from any thread, with its own circle.
+     */
+    public void paintWorld(Graphics2D g, Ellipse2D.Double circle) {
+      g.drawImage(shownTracks(), 0, 0, null);
+
+      //Only turtles too large for images are filled as shapes and need anti-aliasing
+      g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      Turtle[] turtles = this.turtles;
+      for(int i = 0; i < turtles.length; ++i) {
+        Turtle t = turtles[i];
+        paintTurtle(g, circle, t, t.getXPos(), t.getYPos(), t.getDirection(), 1.0);
+      }
+    }
+
+    /**
+     *  Draws the part of a track image which is inside the view. The image
+     *  is a mipmap level where one pixel covers <code>levelScale</code> world pixels.
+     */
+    private void drawTracks(Graphics2D g2, BufferedImage level, int levelScale) {
+      double levelZoom = this.zoom * levelScale;
+      double levelPanX = this.panX / levelScale;
+      double levelPanY = this.panY / levelScale;
+
+      int sx1 = Math.max(0, (int)Math.floor(levelPanX));
+      int sy1 = Math.max(0, (int)Math.floor(levelPanY));
+      int sx2 = Math.min(level.getWidth(), (int)Math.ceil(levelPanX + getWidth() / levelZoom));
+      int sy2 = Math.min(level.getHeight(), (int)Math.ceil(levelPanY + getHeight() / levelZoom));
+      if(sx1 >= sx2 || sy1 >= sy2)
+        return;
+
+      int dx1 = (int)Math.round((sx1 - levelPanX) * levelZoom);
+      int dy1 = (int)Math.round((sy1 - levelPanY) * levelZoom);
+      int dx2 = (int)Math.round((sx2 - levelPanX) * levelZoom);
+      int dy2 = (int)Math.round((sy2 - levelPanY) * levelZoom);
+
+      //Show sharp pixels when zoomed in and smooth them when shrinking
+      Object previousInterpolationHint = g2.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+      if(levelZoom < 1.0)
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      else
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+
+      g2.drawImage(level, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, null);
+
+      if(previousInterpolationHint != null)
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, previousInterpolationHint);
     }
     
     protected void paintComponent(Graphics g) {
@@ -352,19 +1497,962 @@ public class World {
       //to make use of better drawing facilities
       Graphics2D g2 = (Graphics2D)g;
       
-      //Draw back-buffer
-      g2.drawRenderedImage(this.img, null);
+      //Draw back-buffer, from the smallest mipmap level which is still
+      //at least as large as the view so that the cost doesn't depend on the world size
+      BufferedImage tracks = shownTracks();
+      if(this.zoom >= 1.0) {
+        drawTracks(g2, tracks, 1);
+      } else {
+        int level = Math.min(this.mipmap.getLevelCount() - 1, (int)Math.floor(-Math.log(this.zoom) / Math.log(2.0)));
+        drawTracks(g2, this.mipmap.getLevel(level), 1 << level);
+      }
       
-      //Enable anti-aliasing to make the turtles look pretty
+      //Enable anti-aliasing to make the large turtles look pretty
       Object previousAntiAliasHint = g2.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
       g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+      //The turtles are painted in view pixels rather than through a scaled
+      //transform, so that the images of their circles are copied as they are
+      double zoom = this.zoom;
+      double panX = this.panX;
+      double panY = this.panY;
+
+      //Only paint the turtles which are inside the view
+      double viewX1 = panX;
+      double viewY1 = panY;
+      double viewX2 = panX + getWidth() / zoom;
+      double viewY2 = panY + getHeight() / zoom;
       
-      for(Turtle t : this.turtles) {
-        paintTurtle(g, t);
+      InterpolationFrame frame = this.frame;
+      double progress = (frame != null) ? frame.progress(System.nanoTime()) : 1.0;
+
+      Turtle[] turtles = this.turtles;
+      for(int i = 0; i < turtles.length; ++i) {
+        Turtle t = turtles[i];
+        double x = t.getXPos();
+        double y = t.getYPos();
+        double direction = t.getDirection();
+
+        //Turtles which were there at the latest tick are shown between their two latest positions
+        int j = t.tickIndex;
+        if(frame != null && j >= 0 && j < frame.turtles.length && frame.turtles[j] == t) {
+          x = frame.fromX[j] + progress * (frame.toX[j] - frame.fromX[j]);
+          y = frame.fromY[j] + progress * (frame.toY[j] - frame.fromY[j]);
+          direction = frame.fromDirection[j] + progress * frame.turnBetween(j);
+        }
+
+        //Head and legs stick out a bit from the body
+        double reach = 2.0 * t.getRadius();
+        if(x + reach < viewX1 || x - reach > viewX2 || y + reach < viewY1 || y - reach > viewY2)
+          continue;
+
+        paintTurtle(g2, this.circle, t, (x - panX) * zoom, (y - panY) * zoom, direction, zoom);
       }
       
       //Restore previous anti-aliasing mode
       g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, previousAntiAliasHint);
     }
   }
+
+  /**
+   *  Private class which coordinates the rendering of all worlds.
+   *
+   *  <p>A single ticker thread wakes up about 60 times per second. On each
+   *  tick it hands due background work (such as progressive redraws) to a
+   *  shared pool of worker threads, and posts one task to the Swing event
+   *  thread which paints every world that requested an update since the
+   *  previous tick. If the event thread falls behind, no new paint task is
+   *  posted until the previous one has run.</p>
+   */
+  private static class RenderScheduler {
+    private static final long TICK_MICROS = 1000000L / 60;
+
+    private static RenderScheduler instance;
+
+    //Worlds are held weakly, so that worlds without a window which are no
+    //longer used can be garbage collected without being closed
+    private final CopyOnWriteArrayList<WeakReference<World>> worlds;
+    private final ScheduledExecutorService ticker;
+    private final ExecutorService workers;
+    private final AtomicBoolean paintPending;
+    private final Runnable paintTask;
+    private ScheduledFuture<?> tick;
+
+    static synchronized RenderScheduler getInstance() {
+      if(instance == null)
+        instance = new RenderScheduler();
+      return instance;
+    }
+
+    private RenderScheduler() {
+      this.worlds = new CopyOnWriteArrayList<WeakReference<World>>();
+      this.ticker = Executors.newSingleThreadScheduledExecutor(daemonThreads("World render tick"));
+      this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemonThreads("World render worker"));
+      this.paintPending = new AtomicBoolean();
+
+      this.paintTask = new Runnable() {
+        public void run() {
+          paintPending.set(false);
+          for(WeakReference<World> ref : worlds) {
+            World w = ref.get();
+
+            //Clear the flag first so that updates during the paint aren't lost
+            if(w != null && w.frame != null && w.paintRequested) {
+              w.paintRequested = false;
+              w.canvas.paintImmediately(0, 0, w.canvas.getWidth(), w.canvas.getHeight());
+            }
+          }
+        }
+      };
+    }
+
+    synchronized void register(World w) {
+      if(indexOf(w) < 0)
+        this.worlds.add(new WeakReference<World>(w));
+
+      if(this.tick == null) {
+        this.tick = this.ticker.scheduleAtFixedRate(new Runnable() {
+          public void run() {
+            tick();
+          }
+        }, TICK_MICROS, TICK_MICROS, TimeUnit.MICROSECONDS);
+      }
+    }
+
+    /**
+     *  Stops rendering a world, or forgets the collected worlds if <code>w</code> is null.
+     */
+    synchronized void unregister(World w) {
+      for(int i = this.worlds.size() - 1; i >= 0; --i) {
+        World registered = this.worlds.get(i).get();
+        if(registered == w || registered == null)
+          this.worlds.remove(i);
+      }
+
+      //Don't keep ticking when there is nothing to render
+      if(this.worlds.isEmpty() && this.tick != null) {
+        this.tick.cancel(false);
+        this.tick = null;
+      }
+    }
+
+    private int indexOf(World w) {
+      for(int i = 0; i < this.worlds.size(); ++i) {
+        if(this.worlds.get(i).get() == w)
+          return i;
+      }
+      return -1;
+    }
+
+    private void tick() {
+      boolean anyPaint = false;
+      boolean anyCollected = false;
+
+      long now = System.nanoTime();
+      for(WeakReference<World> ref : this.worlds) {
+        World w = ref.get();
+        if(w == null) {
+          anyCollected = true;
+          continue;
+        }
+
+        w.canvas.startBackgroundWork(this.workers);
+
+        //Worlds without a window still get their background work done, but aren't painted
+        if(w.frame == null)
+          continue;
+
+        //Keep repainting while interpolated turtles are on their way
+        InterpolationFrame frame = w.canvas.frame;
+        if(frame != null && frame.progress(now) < 1.0)
+          w.paintRequested = true;
+
+        anyPaint |= w.paintRequested;
+      }
+
+      if(anyCollected)
+        unregister(null);
+
+      if(anyPaint && this.paintPending.compareAndSet(false, true))
+        SwingUtilities.invokeLater(this.paintTask);
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+      return new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, name);
+          t.setDaemon(true);
+          return t;
+        }
+      };
+    }
+  }
+
+  /**
+   *  Private class which holds the positions and directions of the turtles
+   *  at the two latest ticks, for display interpolation. A frame is never
+   *  changed after it has been handed to the canvas.
+   */
+  private static class InterpolationFrame {
+    //Long pauses between ticks are not stretched out on the screen
+    static final long MAX_NANOS = 1000000000L;
+
+    final Turtle[] turtles;
+    final long startNanos;
+    final long durationNanos;
+    final int[] fromX;
+    final int[] fromY;
+    final int[] fromDirection;
+    final int[] toX;
+    final int[] toY;
+    final int[] toDirection;
+
+    InterpolationFrame(Turtle[] turtles, long startNanos, long durationNanos) {
+      this.turtles = turtles;
+      this.startNanos = startNanos;
+      this.durationNanos = durationNanos;
+      this.fromX = new int[turtles.length];
+      this.fromY = new int[turtles.length];
+      this.fromDirection = new int[turtles.length];
+      this.toX = new int[turtles.length];
+      this.toY = new int[turtles.length];
+      this.toDirection = new int[turtles.length];
+    }
+
+    /**
+     *  Returns how far the turtles have come at the given time,
+     *  from 0.0 at the previous tick to 1.0 at the latest.
+     */
+    double progress(long nanos) {
+      if(nanos - this.startNanos >= this.durationNanos)
+        return 1.0;
+      return Math.max(0.0, (double)(nanos - this.startNanos) / this.durationNanos);
+    }
+
+    /**
+     *  Returns the turn in degrees, between -180 and 179, which takes turtle
+     *  <code>i</code> from its previous direction to its latest along the shortest arc.
+     */
+    int turnBetween(int i) {
+      return ((this.toDirection[i] - this.fromDirection[i]) % 360 + 540) % 360 - 180;
+    }
+  }
+
+  /**
+   *  Private class which keeps anti-aliased images of the circles turtles are
+   *  made of, one per color, radius and position of the center within its
+   *  pixel, in an open addressing hash table. Painting a turtle then only
+   *  copies images, while filling a shape makes Java2D create garbage.
+   *  It is used from several painting threads and synchronizes on itself.
+   */
+  private static class CircleSprites {
+    //Larger circles are filled as shapes, to bound the memory of the images
+    static final double MAX_RADIUS = 24.0;
+
+    //Circle centers are rounded to a quarter of a pixel
+    static final int STEPS = 4;
+
+    //The table is emptied when full, to bound its size if colors or zoom keep changing
+    private static final int CAPACITY = 2048;
+
+    private final int[] colors = new int[CAPACITY];
+    private final double[] radii = new double[CAPACITY];
+    private final int[] offsets = new int[CAPACITY];
+    private final BufferedImage[] images = new BufferedImage[CAPACITY];
+    private int count;
+
+    /**
+     *  Returns a square image with an odd side, of a circle whose center is
+     *  offsetX / STEPS and offsetY / STEPS pixels right of and below the top
+     *  left corner of the middle pixel.
+     */
+    synchronized BufferedImage getCircle(int argb, double radius, int offsetX, int offsetY) {
+      int offset = offsetX * STEPS + offsetY;
+      int mask = CAPACITY - 1;
+      int index = ((argb * 0x9e3779b9) ^ (Double.hashCode(radius) * 31) ^ offset) >>> 15 & mask;
+
+      while(this.images[index] != null) {
+        if(this.colors[index] == argb && this.radii[index] == radius && this.offsets[index] == offset)
+          return this.images[index];
+        index = (index + 1) & mask;
+      }
+
+      if(2 * (this.count + 1) > CAPACITY) {
+        Arrays.fill(this.images, null);
+        this.count = 0;
+        index = ((argb * 0x9e3779b9) ^ (Double.hashCode(radius) * 31) ^ offset) >>> 15 & mask;
+      }
+
+      //One pixel of margin on each side for the anti-aliased edge
+      int center = (int)Math.ceil(radius) + 1;
+      BufferedImage img = new BufferedImage(2 * center + 1, 2 * center + 1, BufferedImage.TYPE_INT_ARGB_PRE);
+      Graphics2D g = img.createGraphics();
+      g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      g.setColor(new Color(argb, true));
+      g.fill(new Ellipse2D.Double(center + (double)offsetX / STEPS - radius, center + (double)offsetY / STEPS - radius, 2.0 * radius, 2.0 * radius));
+      g.dispose();
+
+      this.colors[index] = argb;
+      this.radii[index] = radius;
+      this.offsets[index] = offset;
+      this.images[index] = img;
+      ++this.count;
+      return img;
+    }
+  }
+
+  /**
+   *  Private class which keeps the tracks of the world with the visible
+   *  track layers composited on top, as one image which can be shown directly.
+   *
+   *  <p>Like the mipmap, changes are recorded as dirty tiles and only
+   *  those tiles are composited again when the image is requested, so
+   *  hiding or clearing a layer only costs as much as the area it covers.</p>
+   */
+  private static class LayerCompositor {
+    private static final int TILE_SIZE = 64;
+
+    private final BufferedImage img;
+    private final int tileColumns;
+    private final boolean[] dirtyTiles;
+    private volatile boolean dirty;
+
+    //Scratch buffers for one tile of the result and of a layer
+    private final int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+    private final int[] layerPixels = new int[TILE_SIZE * TILE_SIZE];
+
+    LayerCompositor(int width, int height) {
+      this.img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      this.tileColumns = (width + TILE_SIZE - 1) / TILE_SIZE;
+      this.dirtyTiles = new boolean[this.tileColumns * ((height + TILE_SIZE - 1) / TILE_SIZE)];
+    }
+
+    BufferedImage getImage() {
+      return this.img;
+    }
+
+    boolean isDirty() {
+      return this.dirty;
+    }
+
+    /**
+     *  Marks a rectangle (inclusive bounds) as changed.
+     */
+    void markDirty(int x1, int y1, int x2, int y2) {
+      int column1 = Math.max(x1, 0) / TILE_SIZE;
+      int row1 = Math.max(y1, 0) / TILE_SIZE;
+      int column2 = Math.min(x2, this.img.getWidth() - 1) / TILE_SIZE;
+      int row2 = Math.min(y2, this.img.getHeight() - 1) / TILE_SIZE;
+
+      for(int row = row1; row <= row2; ++row) {
+        for(int column = column1; column <= column2; ++column)
+          this.dirtyTiles[row * this.tileColumns + column] = true;
+      }
+      this.dirty = true;
+    }
+
+    /**
+     *  Composites the dirty tiles again from the tracks and the layers,
+     *  and marks them as changed in the mipmap of the composited image.
+     */
+    synchronized void update(BufferedImage tracks, TrackLayer[] layers, TrackMipmap mipmap) {
+      if(!this.dirty)
+        return;
+
+      //Clear the flags before reading pixels, so drawing done meanwhile marks them again
+      this.dirty = false;
+      for(int i = 0; i < this.dirtyTiles.length; ++i) {
+        if(!this.dirtyTiles[i])
+          continue;
+
+        this.dirtyTiles[i] = false;
+        int x = (i % this.tileColumns) * TILE_SIZE;
+        int y = (i / this.tileColumns) * TILE_SIZE;
+        int w = Math.min(TILE_SIZE, this.img.getWidth() - x);
+        int h = Math.min(TILE_SIZE, this.img.getHeight() - y);
+
+        tracks.getRaster().getDataElements(x, y, w, h, this.pixels);
+        for(int j = 0; j < layers.length; ++j) {
+          TrackLayer layer = layers[j];
+          if(layer.visible && layer.x1 < x + w && layer.x2 >= x && layer.y1 < y + h && layer.y2 >= y)
+            blendTile(layer, x, y, w, h);
+        }
+
+        this.img.getRaster().setDataElements(x, y, w, h, this.pixels);
+        mipmap.markDirty(x, y, x + w - 1, y + h - 1);
+      }
+    }
+
+    /**
+     *  Draws one tile of a layer over the tile in the pixel buffer.
+     */
+    private void blendTile(TrackLayer layer, int x, int y, int w, int h) {
+      layer.img.getRaster().getDataElements(x, y, w, h, this.layerPixels);
+
+      for(int i = 0; i < w * h; ++i) {
+        int p = this.layerPixels[i];
+        int alpha = p >>> 24;
+        if(alpha == 0)
+          continue;
+        if(alpha == 255) {
+          this.pixels[i] = p & 0xffffff;
+          continue;
+        }
+
+        int q = this.pixels[i];
+        int r = (((p >> 16) & 0xff) * alpha + ((q >> 16) & 0xff) * (255 - alpha) + 127) / 255;
+        int g = (((p >> 8) & 0xff) * alpha + ((q >> 8) & 0xff) * (255 - alpha) + 127) / 255;
+        int b = ((p & 0xff) * alpha + (q & 0xff) * (255 - alpha) + 127) / 255;
+        this.pixels[i] = (r << 16) | (g << 8) | b;
+      }
+    }
+  }
+
+  /**
+   *  Private class which maintains a mipmap of the track image, a series
+   *  of images where each is half the size of the previous one.
+   *  It is used from several threads. The dirty tiles are guarded by the
+   *  mipmap itself and only held for a moment, while the levels are made
+   *  under a separate lock so that drawing never waits for a downsample.
+   *
+   *  <p>Changes to the tracks are recorded as dirty tiles, and the smaller
+   *  levels are only recomputed for those tiles when a level is requested,
+   *  so the cost of keeping the mipmap up to date follows the amount of drawing.</p>
+   */
+  private static class TrackMipmap {
+    private static final int TILE_SIZE = 64;
+    private static final int MAX_LEVELS = 7;
+
+    private volatile BufferedImage img;
+    private final BufferedImage[] levels;
+    private volatile boolean levelsMade;
+    private final int tileColumns;
+    private final Object updateLock = new Object();
+
+    //Guarded by this: the tiles changed since the last update. The update
+    //swaps them with the cleared set of tiles it worked on the last time.
+    private boolean[] dirtyTiles;
+    private boolean dirty;
+
+    //Guarded by updateLock: the tiles being brought up to date
+    private boolean[] updatingTiles;
+
+    //Scratch buffers for one tile (plus rounding) of the source and destination
+    private final int[] sourcePixels = new int[(TILE_SIZE + 2) * (TILE_SIZE + 2)];
+    private final int[] levelPixels = new int[(TILE_SIZE / 2 + 1) * (TILE_SIZE / 2 + 1)];
+
+    TrackMipmap(BufferedImage img) {
+      this.img = img;
+
+      int levelCount = 1;
+      int w = img.getWidth();
+      int h = img.getHeight();
+      while(levelCount < MAX_LEVELS && (w > 1 || h > 1)) {
+        w = (w + 1) / 2;
+        h = (h + 1) / 2;
+        ++levelCount;
+      }
+      this.levels = new BufferedImage[levelCount];
+      this.levels[0] = img;
+
+      this.tileColumns = (img.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+      this.dirtyTiles = new boolean[this.tileColumns * ((img.getHeight() + TILE_SIZE - 1) / TILE_SIZE)];
+      this.updatingTiles = new boolean[this.dirtyTiles.length];
+    }
+
+    int getLevelCount() {
+      return this.levels.length;
+    }
+
+    /**
+     *  Replaces the track image with another one of the same size.
+     */
+    synchronized void setImage(BufferedImage img) {
+      this.img = img;
+      this.levels[0] = img;
+      markDirty(0, 0, img.getWidth() - 1, img.getHeight() - 1);
+    }
+
+    /**
+     *  Marks a rectangle (inclusive bounds) of the track image as changed.
+     */
+    synchronized void markDirty(int x1, int y1, int x2, int y2) {
+      int column1 = Math.max(x1, 0) / TILE_SIZE;
+      int row1 = Math.max(y1, 0) / TILE_SIZE;
+      int column2 = Math.min(x2, this.img.getWidth() - 1) / TILE_SIZE;
+      int row2 = Math.min(y2, this.img.getHeight() - 1) / TILE_SIZE;
+
+      for(int row = row1; row <= row2; ++row) {
+        for(int column = column1; column <= column2; ++column)
+          this.dirtyTiles[row * this.tileColumns + column] = true;
+      }
+      this.dirty = true;
+    }
+
+    /**
+     *  Returns <code>true</code> if the levels have been made
+     *  and some tiles have changed since the last update.
+     */
+    synchronized boolean isDirty() {
+      return this.dirty && this.levelsMade;
+    }
+
+    /**
+     *  Returns a mipmap level, where level 0 is the track image itself.
+     *  The smaller levels are brought up to date by {@link #update()}, except
+     *  the first time the view is zoomed out when they are made right away.
+     */
+    BufferedImage getLevel(int level) {
+      if(level == 0)
+        return this.img;
+
+      //Painting doesn't wait for a refresh running on a worker, it shows the levels as they are
+      if(!this.levelsMade) {
+        synchronized(this.updateLock) {
+          if(!this.levelsMade) {
+            //Allocate the levels the first time the view is zoomed out
+            for(int i = 1; i < this.levels.length; ++i) {
+              int w = (this.levels[i-1].getWidth() + 1) / 2;
+              int h = (this.levels[i-1].getHeight() + 1) / 2;
+              this.levels[i] = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            }
+            markDirty(0, 0, this.img.getWidth() - 1, this.img.getHeight() - 1);
+            updateDirtyTiles();
+            this.levelsMade = true;
+          }
+        }
+      }
+
+      return this.levels[level];
+    }
+
+    /**
+     *  Recomputes the smaller levels for the tiles changed since the last update.
+     */
+    void update() {
+      synchronized(this.updateLock) {
+        if(this.levelsMade)
+          updateDirtyTiles();
+      }
+    }
+
+    /**
+     *  Called with the update lock held.
+     */
+    private void updateDirtyTiles() {
+      //Take the dirty tiles before reading pixels, so drawing done meanwhile marks them again
+      boolean[] tiles;
+      synchronized(this) {
+        if(!this.dirty)
+          return;
+        tiles = this.dirtyTiles;
+        this.dirtyTiles = this.updatingTiles;
+        this.updatingTiles = tiles;
+        this.dirty = false;
+      }
+
+      BufferedImage img = this.img;
+      for(int i = 0; i < tiles.length; ++i) {
+        if(!tiles[i])
+          continue;
+
+        tiles[i] = false;
+        int x = (i % this.tileColumns) * TILE_SIZE;
+        int y = (i / this.tileColumns) * TILE_SIZE;
+        updateTile(img, x, y, Math.min(x + TILE_SIZE, img.getWidth()), Math.min(y + TILE_SIZE, img.getHeight()));
+      }
+    }
+
+    /**
+     *  Recomputes all levels below a changed region [x1, x2) x [y1, y2) of level 0.
+     */
+    private void updateTile(BufferedImage img, int x1, int y1, int x2, int y2) {
+      for(int i = 1; i < this.levels.length; ++i) {
+        BufferedImage source = (i == 1) ? img : this.levels[i-1];
+        BufferedImage target = this.levels[i];
+
+        x1 = x1 / 2;
+        y1 = y1 / 2;
+        x2 = (x2 + 1) / 2;
+        y2 = (y2 + 1) / 2;
+
+        int sx1 = 2 * x1;
+        int sy1 = 2 * y1;
+        int sw = Math.min(2 * x2, source.getWidth()) - sx1;
+        int sh = Math.min(2 * y2, source.getHeight()) - sy1;
+        int tw = x2 - x1;
+        int th = y2 - y1;
+
+        source.getRaster().getDataElements(sx1, sy1, sw, sh, this.sourcePixels);
+
+        //Average each 2x2 block, repeating the last row/column at odd edges
+        for(int ty = 0; ty < th; ++ty) {
+          int row1 = 2 * ty * sw;
+          int row2 = Math.min(2 * ty + 1, sh - 1) * sw;
+          for(int tx = 0; tx < tw; ++tx) {
+            int col1 = 2 * tx;
+            int col2 = Math.min(2 * tx + 1, sw - 1);
+            int p1 = this.sourcePixels[row1 + col1];
+            int p2 = this.sourcePixels[row1 + col2];
+            int p3 = this.sourcePixels[row2 + col1];
+            int p4 = this.sourcePixels[row2 + col2];
+
+            int r = (((p1 >> 16) & 0xff) + ((p2 >> 16) & 0xff) + ((p3 >> 16) & 0xff) + ((p4 >> 16) & 0xff) + 2) >> 2;
+            int g = (((p1 >> 8) & 0xff) + ((p2 >> 8) & 0xff) + ((p3 >> 8) & 0xff) + ((p4 >> 8) & 0xff) + 2) >> 2;
+            int b = ((p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff) + (p4 & 0xff) + 2) >> 2;
+            this.levelPixels[ty * tw + tx] = (r << 16) | (g << 8) | b;
+          }
+        }
+
+        target.getRaster().setDataElements(x1, y1, tw, th, this.levelPixels);
+      }
+    }
+  }
+
+  /**
+   *  Private class which remembers the line segments and filled polygons
+   *  drawn on the tracks since a base image, so that they can be drawn again.
+   *  Each redraw starts a new history with the redrawn image as its base.
+   *  A segment takes six ints: LINE, x1, y1, x2, y2 and the RGB color. A polygon
+   *  takes FILL, the RGB color, the fill rule, the vertex count n and n
+   *  x-coordinates followed by n y-coordinates.
+   *
+   *  <p>Records are only ever appended to or cut off from the end of the
+   *  data, so a copy of the data reference and size can be read without
+   *  holding the canvas lock. The version changes when records are cut off.</p>
+   */
+  private static class TrackHistory {
+    private static final int LINE = 0;
+    private static final int FILL = 1;
+
+    final BufferedImage base;
+
+    int[] data;
+    int size;
+    int version;
+    boolean needsRedraw;
+
+    TrackHistory(BufferedImage base) {
+      this.base = base;
+      this.data = new int[6 * 256];
+    }
+
+    void addLine(int x1, int y1, int x2, int y2, int rgb) {
+      ensureCapacity(6);
+
+      this.data[this.size] = LINE;
+      this.data[this.size+1] = x1;
+      this.data[this.size+2] = y1;
+      this.data[this.size+3] = x2;
+      this.data[this.size+4] = y2;
+      this.data[this.size+5] = rgb;
+      this.size += 6;
+      this.needsRedraw = true;
+    }
+
+    void addFill(int[] xs, int[] ys, int count, int rgb, boolean evenOdd) {
+      ensureCapacity(4 + 2 * count);
+
+      this.data[this.size] = FILL;
+      this.data[this.size+1] = rgb;
+      this.data[this.size+2] = evenOdd ? 1 : 0;
+      this.data[this.size+3] = count;
+      System.arraycopy(xs, 0, this.data, this.size + 4, count);
+      System.arraycopy(ys, 0, this.data, this.size + 4 + count, count);
+      this.size += 4 + 2 * count;
+      this.needsRedraw = true;
+    }
+
+    /**
+     *  Appends records copied from another history, without asking for a redraw.
+     */
+    void addRecords(int[] records, int from, int to) {
+      ensureCapacity(to - from);
+
+      System.arraycopy(records, from, this.data, this.size, to - from);
+      this.size += to - from;
+    }
+
+    void truncate(int size) {
+      if(size < this.size) {
+        this.size = size;
+        ++this.version;
+      }
+      this.needsRedraw = true;
+    }
+
+    private void ensureCapacity(int extra) {
+      if(this.size + extra > this.data.length)
+        this.data = Arrays.copyOf(this.data, Math.max(2 * this.data.length, this.size + extra));
+    }
+
+    static void replay(BufferedImage img, Graphics2D g, int[] data, int from, int to) {
+      //Stored colors are opaque so 0 never matches the first segment
+      int rgb = 0;
+
+      int i = from;
+      while(i < to) {
+        if(data[i] == LINE) {
+          if(data[i+5] != rgb) {
+            rgb = data[i+5];
+            g.setColor(new Color(rgb));
+          }
+          g.drawLine(data[i+1], data[i+2], data[i+3], data[i+4]);
+          i += 6;
+        } else {
+          int count = data[i+3];
+          int[] xs = Arrays.copyOfRange(data, i + 4, i + 4 + count);
+          int[] ys = Arrays.copyOfRange(data, i + 4 + count, i + 4 + 2 * count);
+          PolygonFiller.fill(img.getRaster(), xs, ys, count, data[i+1] & 0xffffff, data[i+2] != 0);
+          i += 4 + 2 * count;
+        }
+      }
+    }
+  }
+
+  /**
+   *  Private class which fills polygons with a scanline algorithm.
+   *
+   *  <p>Every non-horizontal edge is put in an edge table, bucketed by the
+   *  first pixel row it crosses. Going down the rows, edges are moved from
+   *  the table to a list of active edges, kept sorted by the x-coordinate
+   *  where they cross the row, and the pixels between the crossings are
+   *  written straight into the raster. A pixel is filled when its center
+   *  is inside the polygon, following either the even-odd or the non-zero
+   *  winding rule.</p>
+   *
+   *  <p>The pixel value is written as it is, so it has to suit the raster:
+   *  RGB for the tracks and opaque ARGB for a track layer.</p>
+   */
+  private static class PolygonFiller {
+    static void fill(WritableRaster raster, int[] xs, int[] ys, int count, int pixel, boolean evenOdd) {
+      int width = raster.getWidth();
+      int height = raster.getHeight();
+
+      //Edge table, with the edges of each bucket linked through nextEdge
+      int rowMin = Integer.MAX_VALUE;
+      int rowMax = Integer.MIN_VALUE;
+      for(int i = 0; i < count; ++i) {
+        rowMin = Math.min(rowMin, ys[i]);
+        rowMax = Math.max(rowMax, ys[i]);
+      }
+      rowMin = Math.max(rowMin, 0);
+      rowMax = Math.min(rowMax, height - 1);
+      if(rowMin > rowMax)
+        return;
+
+      int[] bucket = new int[rowMax - rowMin + 1];
+      Arrays.fill(bucket, -1);
+      int[] nextEdge = new int[count];
+      int[] edgeEnd = new int[count];     //First row below the edge
+      int[] edgeWinding = new int[count];
+      double[] edgeX = new double[count]; //Crossing with the current row
+      double[] edgeSlope = new double[count];
+
+      for(int i = 0; i < count; ++i) {
+        int x0 = xs[i], y0 = ys[i];
+        int x1 = xs[(i + 1) % count], y1 = ys[(i + 1) % count];
+        if(y0 == y1)
+          continue;
+
+        int winding = 1;
+        if(y0 > y1) {
+          int tmp = x0; x0 = x1; x1 = tmp;
+          tmp = y0; y0 = y1; y1 = tmp;
+          winding = -1;
+        }
+
+        //Rows whose centers (row + 0.5) lie in [y0, y1)
+        int start = Math.max(y0, rowMin);
+        int end = Math.min(y1, rowMax + 1);
+        if(start >= end)
+          continue;
+
+        edgeSlope[i] = (double)(x1 - x0) / (y1 - y0);
+        edgeX[i] = x0 + (start + 0.5 - y0) * edgeSlope[i];
+        edgeEnd[i] = end;
+        edgeWinding[i] = winding;
+        nextEdge[i] = bucket[start - rowMin];
+        bucket[start - rowMin] = i;
+      }
+
+      int[] active = new int[count];
+      int activeCount = 0;
+      int[] span = new int[width];
+      Arrays.fill(span, pixel);
+
+      for(int row = rowMin; row <= rowMax; ++row) {
+        //Drop finished edges and step the others down to this row
+        int kept = 0;
+        for(int k = 0; k < activeCount; ++k) {
+          int e = active[k];
+          if(edgeEnd[e] > row) {
+            edgeX[e] += edgeSlope[e];
+            active[kept++] = e;
+          }
+        }
+        activeCount = kept;
+
+        for(int e = bucket[row - rowMin]; e >= 0; e = nextEdge[e])
+          active[activeCount++] = e;
+
+        //Insertion sort, the order rarely changes from one row to the next
+        for(int k = 1; k < activeCount; ++k) {
+          int e = active[k];
+          int m = k - 1;
+          while(m >= 0 && edgeX[active[m]] > edgeX[e]) {
+            active[m+1] = active[m];
+            --m;
+          }
+          active[m+1] = e;
+        }
+
+        int winding = 0;
+        for(int k = 0; k + 1 < activeCount; ++k) {
+          int e = active[k];
+          winding = evenOdd ? (winding ^ 1) : (winding + edgeWinding[e]);
+          if(winding == 0)
+            continue;
+
+          //Pixels with centers between the two crossings
+          int spanStart = Math.max(0, (int)Math.ceil(edgeX[e] - 0.5));
+          int spanEnd = Math.min(width, (int)Math.ceil(edgeX[active[k+1]] - 0.5));
+          if(spanStart < spanEnd)
+            raster.setDataElements(spanStart, row, spanEnd - spanStart, 1, span);
+        }
+      }
+    }
+  }
+
+  /**
+   *  Private class which holds a saved state of the world.
+   *
+   *  <p>The turtles are copied right away, while the tracks are copied
+   *  lazily in square tiles. A tile is saved the first time it is about
+   *  to be drawn on while this is the most recent checkpoint. Tiles drawn
+   *  on after a newer checkpoint was taken are saved by that checkpoint
+   *  instead, so restoring has to undo the newer checkpoints first.</p>
+   */
+  private class Checkpoint {
+    private static final int TILE_SIZE = 64;
+
+    final int id;
+
+    private final int tileColumns;
+    private final int tileRows;
+    private final int[][] tiles;
+
+    private final TrackHistory history;
+    private final int historySize;
+
+    private final Turtle[] turtleList;
+    private final int[] turtleInts;
+    private final double[] turtleSizes;
+    private final Color[] turtleColors;
+    private final TrackLayer[] turtleLayers;
+
+    Checkpoint(int id) {
+      this.id = id;
+
+      this.tileColumns = (width + TILE_SIZE - 1) / TILE_SIZE;
+      this.tileRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+      this.tiles = new int[this.tileColumns * this.tileRows][];
+
+      synchronized(canvas) {
+        this.history = canvas.history;
+        this.historySize = (this.history != null) ? this.history.size : 0;
+      }
+
+      this.turtleList = turtles.toArray(new Turtle[0]);
+      this.turtleInts = new int[5 * this.turtleList.length];
+      this.turtleSizes = new double[this.turtleList.length];
+      this.turtleColors = new Color[2 * this.turtleList.length];
+      this.turtleLayers = new TrackLayer[this.turtleList.length];
+
+      for(int i = 0; i < this.turtleList.length; ++i) {
+        Turtle t = this.turtleList[i];
+        this.turtleInts[5*i] = t.getXPos();
+        this.turtleInts[5*i+1] = t.getYPos();
+        this.turtleInts[5*i+2] = t.getDirection();
+        this.turtleInts[5*i+3] = t.isVisible() ? 1 : 0;
+        this.turtleInts[5*i+4] = t.isPathEnabled() ? 1 : 0;
+        this.turtleSizes[i] = t.getSize();
+        this.turtleColors[2*i] = t.getColor();
+        this.turtleColors[2*i+1] = t.getLimbColor();
+        this.turtleLayers[i] = t.layer;
+      }
+    }
+
+    void saveTiles(int x1, int y1, int x2, int y2) {
+      int column1 = Math.max(x1, 0) / TILE_SIZE;
+      int row1 = Math.max(y1, 0) / TILE_SIZE;
+      int column2 = Math.min(x2, width - 1) / TILE_SIZE;
+      int row2 = Math.min(y2, height - 1) / TILE_SIZE;
+
+      for(int row = row1; row <= row2; ++row) {
+        for(int column = column1; column <= column2; ++column) {
+          int index = row * this.tileColumns + column;
+          if(this.tiles[index] != null)
+            continue;
+
+          int x = column * TILE_SIZE;
+          int y = row * TILE_SIZE;
+          int w = Math.min(TILE_SIZE, width - x);
+          int h = Math.min(TILE_SIZE, height - y);
+          this.tiles[index] = (int[])canvas.img.getRaster().getDataElements(x, y, w, h, new int[w * h]);
+        }
+      }
+    }
+
+    void restoreTiles() {
+      WritableRaster raster = canvas.img.getRaster();
+
+      for(int index = 0; index < this.tiles.length; ++index) {
+        if(this.tiles[index] == null)
+          continue;
+
+        int x = (index % this.tileColumns) * TILE_SIZE;
+        int y = (index / this.tileColumns) * TILE_SIZE;
+        int w = Math.min(TILE_SIZE, width - x);
+        int h = Math.min(TILE_SIZE, height - y);
+        raster.setDataElements(x, y, w, h, this.tiles[index]);
+        this.tiles[index] = null;
+        canvas.tracksChanged(x, y, x + w - 1, y + h - 1);
+      }
+    }
+
+    void restoreHistory() {
+      if(canvas.history == null)
+        return;
+
+      //Forget the segments drawn after the checkpoint, or start over
+      //from the restored tracks if the history has been replaced since
+      if(canvas.history == this.history)
+        this.history.truncate(this.historySize);
+      else
+        canvas.history = new TrackHistory(canvas.copyImage());
+      canvas.lastTrackChange = System.nanoTime();
+    }
+
+    void restoreTurtles() {
+      for(int i = 0; i < this.turtleList.length; ++i) {
+        this.turtleList[i].restoreState(
+          this.turtleInts[5*i], this.turtleInts[5*i+1], this.turtleInts[5*i+2],
+          this.turtleSizes[i], this.turtleColors[2*i], this.turtleColors[2*i+1],
+          this.turtleInts[5*i+3] != 0, this.turtleInts[5*i+4] != 0);
+
+        //A layer removed since the checkpoint is noticed when the turtle next draws
+        this.turtleList[i].layer = this.turtleLayers[i];
+      }
+
+      turtles.retainAll(Arrays.asList(this.turtleList));
+      for(int i = 0; i < this.turtleList.length; ++i) {
+        if(i >= turtles.size() || turtles.get(i) != this.turtleList[i]) {
+          turtles.remove(this.turtleList[i]);
+          turtles.add(i, this.turtleList[i]);
+        }
+      }
+      turtlesChanged();
+    }
+  }
 }
@@ -0,0 +1,653 @@
+/**
+ * Copyright (c) 2015, Johan Ofverstedt <johan.ofverstedt@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with or without fee is hereby granted,
+ * provided that the above copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS SOFTWARE INCLUDING ALL
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN
+ * AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+
+/**
+ *  WorldState saves the state of a {@link World} (its turtles and
+ *  optionally its tracks) and loads it back, so that long simulations can
+ *  be stopped and resumed later.
+ *
+ *  <p>Two formats are supported: a compact binary format and JSON. The state
+ *  is written piece by piece through a small buffer, so saving a world with
+ *  many turtles or large tracks never builds the whole state in memory.</p>
+ *
+ *  <p>Example:</p>
+ *  <pre>
+ *  WorldState.save(w, "world.bin", WorldState.BINARY, true);
+ *  ...
+ *  Turtle[] turtles = WorldState.load(w, "world.bin", true);
+ *  </pre>
+ */
+public class WorldState {
+  /**
+   *  The compact binary format.
+   */
+  public static final int BINARY = 0;
+
+  /**
+   *  The JSON format. Colors are written as <code>"#rrggbb"</code> and
+   *  every row of the tracks as a base64 string of RGB bytes.
+   */
+  public static final int JSON = 1;
+
+  private static final int MAGIC = 0x5452544c; // "TRTL"
+  private static final int VERSION = 1;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  //This class only has static methods
+  private WorldState() {
+  }
+
+  /**
+   *  Saves the state of a world to a file.
+   *
+   *  @param w The world to save.
+   *  @param fileName The name of the file, which is replaced if it exists.
+   *  @param format {@link #BINARY} or {@link #JSON}.
+   *  @param includeTracks Whether the tracks are saved as well as the turtles.
+   *
+   *  @throws IOException If the file can't be written.
+   */
+  public static void save(World w, String fileName, int format, boolean includeTracks) throws IOException {
+    FileChannel channel = FileChannel.open(Paths.get(fileName),
+      StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      write(w, channel, format, includeTracks);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   *  Loads a state saved by {@link #save(World, String, int, boolean)} into a world.
+   *
+   *  @param w The world to load the state into.
+   *  @param fileName The name of the file.
+   *  @param restoreTracks Whether saved tracks replace the tracks of the world.
+   *
+   *  @return The turtles which were loaded.
+   *
+   *  @throws IOException If the file can't be read.
+   */
+  public static Turtle[] load(World w, String fileName, boolean restoreTracks) throws IOException {
+    FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+    try {
+      return read(w, channel, restoreTracks);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   *  Writes the state of a world to a channel. The channel is not closed.
+   *
+   *  @param w The world to write.
+   *  @param out The channel to write to.
+   *  @param format {@link #BINARY} or {@link #JSON}.
+   *  @param includeTracks Whether the tracks are written as well as the turtles.
+   *
+   *  @throws IOException If writing to the channel fails.
+   */
+  public static void write(World w, WritableByteChannel out, int format, boolean includeTracks) throws IOException {
+    if(w == null || out == null)
+      throw new RuntimeException("Can't write the state of a null world or to a null channel.");
+
+    Output output = new Output(out);
+    if(format == BINARY)
+      writeBinary(w, output, includeTracks);
+    else if(format == JSON)
+      writeJson(w, output, includeTracks);
+    else
+      throw new RuntimeException("Unknown world state format " + format + ".");
+    output.flush();
+  }
+
+  /**
+   *  Reads a state written by {@link #write(World, WritableByteChannel, int, boolean)}
+   *  into a world. The format is detected automatically.
+   *
+   *  <p>All turtles in the world are removed and replaced by the loaded turtles.
+   *  Turtles outside the world are moved to its edge. Tracks can only be
+   *  restored into a world with the same size as the saved one.</p>
+   *
+   *  <p>The state is checked before the world is changed. If it can't be read,
+   *  the turtles are left as they were, and so are the tracks unless the
+   *  saved tracks themselves turn out to be cut short or damaged.</p>
+   *
+   *  @param w The world to read the state into.
+   *  @param in The channel to read from.
+   *  @param restoreTracks Whether saved tracks replace the tracks of the world.
+   *
+   *  @return The turtles which were loaded.
+   *
+   *  @throws IOException If reading from the channel fails.
+   */
+  public static Turtle[] read(World w, ReadableByteChannel in, boolean restoreTracks) throws IOException {
+    if(w == null || in == null)
+      throw new RuntimeException("Can't read the state into a null world or from a null channel.");
+
+    Input input = new Input(in);
+    ArrayList<Turtle> loaded = new ArrayList<Turtle>();
+
+    w.beginBatch();
+    try {
+      if(input.peek() == '{')
+        readJson(w, input, restoreTracks, loaded);
+      else
+        readBinary(w, input, restoreTracks, loaded);
+    } finally {
+      w.endBatch();
+    }
+
+    return loaded.toArray(new Turtle[loaded.size()]);
+  }
+
+  //
+  //  Implementation details below here...
+  //
+
+  private static void writeBinary(World w, Output out, boolean includeTracks) throws IOException {
+    Turtle[] turtles = w.getTurtleArray();
+
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(w.getWidth());
+    out.writeInt(w.getHeight());
+    out.writeInt(turtles.length);
+    out.writeByte(includeTracks ? 1 : 0);
+
+    for(Turtle t : turtles) {
+      out.writeInt(t.getXPos());
+      out.writeInt(t.getYPos());
+      out.writeInt(t.getDirection());
+      out.writeFloat((float)t.getSize());
+      out.writeInt(t.getColor().getRGB() & 0xffffff);
+      out.writeByte((t.isVisible() ? 1 : 0) | (t.isPathEnabled() ? 2 : 0));
+    }
+
+    if(includeTracks) {
+      int[] row = new int[w.getWidth()];
+      for(int y = 0; y < w.getHeight(); ++y) {
+        w.readTrackRow(y, row);
+        for(int x = 0; x < row.length; ++x) {
+          out.writeByte(row[x] >> 16);
+          out.writeByte(row[x] >> 8);
+          out.writeByte(row[x]);
+        }
+      }
+    }
+  }
+
+  private static void readBinary(World w, Input in, boolean restoreTracks, ArrayList<Turtle> loaded) throws IOException {
+    if(in.readInt() != MAGIC)
+      throw new RuntimeException("Not a world state.");
+    int version = in.readInt();
+    if(version != VERSION)
+      throw new RuntimeException("Unsupported world state version " + version + ".");
+
+    int width = in.readInt();
+    int height = in.readInt();
+    int turtleCount = in.readInt();
+    boolean hasTracks = in.readByte() != 0;
+    if(turtleCount < 0)
+      throw new RuntimeException("Not a world state.");
+    if(hasTracks && restoreTracks)
+      checkTrackSize(w, width, height);
+
+    //The turtles are read in full before any turtle in the world is replaced
+    ArrayList<SavedTurtle> saved = new ArrayList<SavedTurtle>();
+    for(int i = 0; i < turtleCount; ++i) {
+      SavedTurtle t = new SavedTurtle();
+      t.x = in.readInt();
+      t.y = in.readInt();
+      t.direction = in.readInt();
+      t.size = in.readFloat();
+      t.rgb = in.readInt();
+      int flags = in.readByte();
+      t.visible = (flags & 1) != 0;
+      t.path = (flags & 2) != 0;
+      saved.add(t);
+    }
+
+    if(hasTracks && restoreTracks) {
+      int[] row = new int[width];
+      for(int y = 0; y < height; ++y) {
+        for(int x = 0; x < width; ++x)
+          row[x] = (in.readByte() << 16) | (in.readByte() << 8) | in.readByte();
+        w.writeTrackRow(y, row);
+      }
+      w.tracksReplaced();
+    }
+
+    replaceTurtles(w, saved, loaded);
+  }
+
+  private static void writeJson(World w, Output out, boolean includeTracks) throws IOException {
+    Turtle[] turtles = w.getTurtleArray();
+
+    out.writeAscii("{\"width\": " + w.getWidth() + ", \"height\": " + w.getHeight() + ",\n \"turtles\": [");
+
+    for(int i = 0; i < turtles.length; ++i) {
+      Turtle t = turtles[i];
+      out.writeAscii(i == 0 ? "\n  " : ",\n  ");
+      out.writeAscii("{\"x\": " + t.getXPos() + ", \"y\": " + t.getYPos() + ", \"direction\": " + t.getDirection() +
+        ", \"size\": " + jsonSize(t.getSize()) + ", \"color\": \"" + toHex(t.getColor()) +
+        "\", \"visible\": " + t.isVisible() + ", \"path\": " + t.isPathEnabled() + "}");
+    }
+    out.writeAscii("]");
+
+    if(includeTracks) {
+      out.writeAscii(",\n \"tracks\": [");
+
+      int[] row = new int[w.getWidth()];
+      byte[] bytes = new byte[3 * row.length];
+      Base64.Encoder encoder = Base64.getEncoder();
+
+      for(int y = 0; y < w.getHeight(); ++y) {
+        w.readTrackRow(y, row);
+        for(int x = 0; x < row.length; ++x) {
+          bytes[3*x] = (byte)(row[x] >> 16);
+          bytes[3*x+1] = (byte)(row[x] >> 8);
+          bytes[3*x+2] = (byte)row[x];
+        }
+        out.writeAscii(y == 0 ? "\n  \"" : ",\n  \"");
+        out.writeAscii(encoder.encodeToString(bytes));
+        out.writeAscii("\"");
+      }
+      out.writeAscii("]");
+    }
+
+    out.writeAscii("}\n");
+  }
+
+  /**
+   *  Reads the JSON format one value at a time, so that only a single
+   *  turtle or row of the tracks is held in memory. Unknown keys are skipped.
+   */
+  private static void readJson(World w, Input in, boolean restoreTracks, ArrayList<Turtle> loaded) throws IOException {
+    int width = -1;
+    int height = -1;
+    ArrayList<SavedTurtle> saved = new ArrayList<SavedTurtle>();
+
+    in.expect('{');
+    if(in.skipWhitespaceAndPeek() == '}') {
+      in.read();
+      replaceTurtles(w, saved, loaded);
+      return;
+    }
+
+    do {
+      String key = in.readString();
+      in.expect(':');
+
+      if(key.equals("width")) {
+        width = (int)in.readNumber();
+      } else if(key.equals("height")) {
+        height = (int)in.readNumber();
+      } else if(key.equals("turtles")) {
+        in.expect('[');
+        if(in.skipWhitespaceAndPeek() == ']') {
+          in.read();
+          continue;
+        }
+        do {
+          saved.add(readJsonTurtle(w, in));
+        } while(in.readSeparator(']'));
+      } else if(key.equals("tracks") && restoreTracks) {
+        checkTrackSize(w, width, height);
+
+        int[] row = new int[width];
+        Base64.Decoder decoder = Base64.getDecoder();
+        int y = 0;
+
+        in.expect('[');
+        if(in.skipWhitespaceAndPeek() == ']') {
+          in.read();
+        } else {
+          do {
+            byte[] bytes = decoder.decode(in.readString());
+            if(y >= height || bytes.length != 3 * width)
+              throw new RuntimeException("The saved tracks don't match the saved world size.");
+            for(int x = 0; x < width; ++x)
+              row[x] = ((bytes[3*x] & 0xff) << 16) | ((bytes[3*x+1] & 0xff) << 8) | (bytes[3*x+2] & 0xff);
+            w.writeTrackRow(y++, row);
+          } while(in.readSeparator(']'));
+        }
+
+        //Like the binary format, every row has to be there
+        if(y != height)
+          throw new RuntimeException("The saved tracks don't match the saved world size.");
+        w.tracksReplaced();
+      } else {
+        in.skipValue();
+      }
+    } while(in.readSeparator('}'));
+
+    replaceTurtles(w, saved, loaded);
+  }
+
+  private static SavedTurtle readJsonTurtle(World w, Input in) throws IOException {
+    HashMap<String, Object> fields = new HashMap<String, Object>();
+
+    in.expect('{');
+    if(in.skipWhitespaceAndPeek() == '}') {
+      in.read();
+    } else {
+      do {
+        String key = in.readString();
+        in.expect(':');
+        int c = in.skipWhitespaceAndPeek();
+        if(c == '"')
+          fields.put(key, in.readString());
+        else if(c == 't' || c == 'f')
+          fields.put(key, in.readBoolean());
+        else if(c == '-' || (c >= '0' && c <= '9'))
+          fields.put(key, in.readNumber());
+        else
+          in.skipValue();
+      } while(in.readSeparator('}'));
+    }
+
+    int rgb = 0;
+    Object color = fields.get("color");
+    if(color instanceof String && ((String)color).startsWith("#"))
+      rgb = Integer.parseInt(((String)color).substring(1), 16);
+
+    SavedTurtle t = new SavedTurtle();
+    t.x = (int)jsonNumber(fields, "x", w.getWidth() / 2);
+    t.y = (int)jsonNumber(fields, "y", w.getHeight() / 2);
+    t.direction = (int)jsonNumber(fields, "direction", 0);
+    t.size = jsonNumber(fields, "size", 1.0);
+    t.rgb = rgb;
+    t.visible = !Boolean.FALSE.equals(fields.get("visible"));
+    t.path = !Boolean.FALSE.equals(fields.get("path"));
+    return t;
+  }
+
+  private static double jsonNumber(HashMap<String, Object> fields, String key, double defaultValue) {
+    Object value = fields.get(key);
+    return (value instanceof Double) ? (Double)value : defaultValue;
+  }
+
+  /**
+   *  Removes all turtles from the world and creates the saved ones,
+   *  once the whole state has been read.
+   */
+  private static void replaceTurtles(World w, ArrayList<SavedTurtle> saved, ArrayList<Turtle> loaded) {
+    for(Turtle t : w.getTurtleArray())
+      w.remove(t);
+
+    for(SavedTurtle s : saved) {
+      //The constructor keeps the turtle inside the world
+      Turtle t = new Turtle(w, s.x, s.y);
+      t.setColor((s.rgb >> 16) & 0xff, (s.rgb >> 8) & 0xff, s.rgb & 0xff);
+      t.setDirection(s.direction);
+      t.restoreState(t.getXPos(), t.getYPos(), t.getDirection(), Math.max(s.size, 0.0), t.getColor(), t.getLimbColor(), s.visible, s.path);
+      loaded.add(t);
+    }
+  }
+
+  private static void checkTrackSize(World w, int width, int height) {
+    if(width != w.getWidth() || height != w.getHeight())
+      throw new RuntimeException("Saved tracks of size " + width + "x" + height + " can't be restored into a world of size " +
+        w.getWidth() + "x" + w.getHeight() + ".");
+  }
+
+  /**
+   *  Returns a size which can be written as a JSON number, since
+   *  NaN and infinity can't be. NaN is treated like a negative size.
+   */
+  private static float jsonSize(double size) {
+    if(Double.isNaN(size))
+      return 0.0f;
+    return (float)Math.min(size, Float.MAX_VALUE);
+  }
+
+  private static String toHex(Color color) {
+    String hex = Integer.toHexString(color.getRGB() & 0xffffff);
+    return "#000000".substring(0, 7 - hex.length()) + hex;
+  }
+
+  /**
+   *  The attributes of a turtle which has been read but not yet created.
+   */
+  private static class SavedTurtle {
+    int x;
+    int y;
+    int direction;
+    double size;
+    int rgb;
+    boolean visible;
+    boolean path;
+  }
+
+  /**
+   *  Buffered writer on top of a channel.
+   */
+  private static class Output {
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    Output(WritableByteChannel channel) {
+      this.channel = channel;
+      this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    void writeByte(int value) throws IOException {
+      if(!this.buffer.hasRemaining())
+        flush();
+      this.buffer.put((byte)value);
+    }
+
+    void writeInt(int value) throws IOException {
+      if(this.buffer.remaining() < 4)
+        flush();
+      this.buffer.putInt(value);
+    }
+
+    void writeFloat(float value) throws IOException {
+      writeInt(Float.floatToIntBits(value));
+    }
+
+    void writeAscii(String s) throws IOException {
+      for(int i = 0; i < s.length(); ++i)
+        writeByte(s.charAt(i));
+    }
+
+    void flush() throws IOException {
+      this.buffer.flip();
+      while(this.buffer.hasRemaining())
+        this.channel.write(this.buffer);
+      this.buffer.clear();
+    }
+  }
+
+  /**
+   *  Buffered reader on top of a channel, with the few
+   *  pieces of JSON parsing needed for the JSON format.
+   */
+  private static class Input {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final StringBuilder text;
+
+    Input(ReadableByteChannel channel) {
+      this.channel = channel;
+      this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      this.buffer.flip();
+      this.text = new StringBuilder();
+    }
+
+    /**
+     *  Returns the next byte without consuming it, or -1 at the end of the channel.
+     */
+    int peek() throws IOException {
+      while(!this.buffer.hasRemaining()) {
+        this.buffer.clear();
+        int count = this.channel.read(this.buffer);
+        this.buffer.flip();
+        if(count < 0)
+          return -1;
+      }
+      return this.buffer.get(this.buffer.position()) & 0xff;
+    }
+
+    int read() throws IOException {
+      int c = peek();
+      if(c < 0)
+        throw new RuntimeException("Unexpected end of the world state.");
+      this.buffer.get();
+      return c;
+    }
+
+    int readByte() throws IOException {
+      return read();
+    }
+
+    int readInt() throws IOException {
+      return (read() << 24) | (read() << 16) | (read() << 8) | read();
+    }
+
+    float readFloat() throws IOException {
+      return Float.intBitsToFloat(readInt());
+    }
+
+    int skipWhitespaceAndPeek() throws IOException {
+      int c = peek();
+      while(c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+        this.buffer.get();
+        c = peek();
+      }
+      return c;
+    }
+
+    void expect(char expected) throws IOException {
+      int c = skipWhitespaceAndPeek();
+      if(c != expected)
+        throw new RuntimeException("Expected '" + expected + "' in the world state but found '" + (char)c + "'.");
+      read();
+    }
+
+    /**
+     *  Reads a ',' and returns true, or reads the closing character and returns false.
+     */
+    boolean readSeparator(char closing) throws IOException {
+      int c = skipWhitespaceAndPeek();
+      if(c == ',') {
+        read();
+        return true;
+      }
+      expect(closing);
+      return false;
+    }
+
+    String readString() throws IOException {
+      expect('"');
+      this.text.setLength(0);
+
+      while(true) {
+        int c = read();
+        if(c == '"')
+          break;
+
+        if(c == '\\') {
+          c = read();
+          switch(c) {
+            case 'n': c = '\n'; break;
+            case 't': c = '\t'; break;
+            case 'r': c = '\r'; break;
+            case 'b': c = '\b'; break;
+            case 'f': c = '\f'; break;
+            case 'u':
+              c = 0;
+              for(int i = 0; i < 4; ++i)
+                c = 16 * c + Character.digit(read(), 16);
+              break;
+            default:
+              break;
+          }
+        }
+        this.text.append((char)c);
+      }
+
+      return this.text.toString();
+    }
+
+    double readNumber() throws IOException {
+      skipWhitespaceAndPeek();
+      this.text.setLength(0);
+
+      int c = peek();
+      while(c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')) {
+        this.text.append((char)read());
+        c = peek();
+      }
+
+      try {
+        return Double.parseDouble(this.text.toString());
+      } catch(NumberFormatException e) {
+        throw new RuntimeException("Invalid number '" + this.text + "' in the world state.");
+      }
+    }
+
+    boolean readBoolean() throws IOException {
+      int c = skipWhitespaceAndPeek();
+      String word = (c == 't') ? "true" : "false";
+      for(int i = 0; i < word.length(); ++i) {
+        if(read() != word.charAt(i))
+          throw new RuntimeException("Invalid value in the world state.");
+      }
+      return c == 't';
+    }
+
+    void skipValue() throws IOException {
+      int c = skipWhitespaceAndPeek();
+
+      if(c == '"') {
+        readString();
+      } else if(c == '{' || c == '[') {
+        char closing = (c == '{') ? '}' : ']';
+        read();
+        if(skipWhitespaceAndPeek() == closing) {
+          read();
+          return;
+        }
+        do {
+          if(closing == '}') {
+            readString();
+            expect(':');
+          }
+          skipValue();
+        } while(readSeparator(closing));
+      } else if(c == 't' || c == 'f') {
+        readBoolean();
+      } else if(c == 'n') {
+        for(int i = 0; i < 4; ++i)
+          read();
+      } else {
+        readNumber();
+      }
+    }
+  }
+}
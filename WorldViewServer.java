@@ -0,0 +1,424 @@
+/**
+ * Copyright (c) 2015, Johan Ofverstedt <johan.ofverstedt@gmail.com>
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any purpose with or without fee is hereby granted,
+ * provided that the above copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH REGARD TO THIS SOFTWARE INCLUDING ALL
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN
+ * AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+import java.awt.Graphics2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import javax.imageio.ImageIO;
+
+/**
+ *  WorldViewServer lets a {@link World} be watched in a web browser,
+ *  which is handy when the world runs on a computer without a screen.
+ *
+ *  <p>The server shows the tracks and the turtles as a stream of JPEG
+ *  images (MJPEG) at <code>http://localhost:port/</code>. A single image
+ *  is available at <code>/frame.jpg</code> and the raw stream at
+ *  <code>/stream</code>.</p>
+ *
+ *  <p>Frames are painted and encoded by one background thread, at most
+ *  once per frame however many viewers there are, and only when the world
+ *  has changed. When nobody is watching the thread sleeps.</p>
+ *
+ *  <p>Example:</p>
+ *  <pre>
+ *  World w = new World(800, 600);
+ *  WorldViewServer server = new WorldViewServer(w, 8080);
+ *  ...
+ *  server.close();
+ *  </pre>
+ */
+public class WorldViewServer {
+  private static final String BOUNDARY = "turtleframe";
+
+  //A connection which doesn't send its request in time is dropped
+  private static final int REQUEST_TIMEOUT_MILLIS = 10000;
+
+  //A viewer stuck writing one frame while this many newer frames are
+  //encoded has stopped reading, and is dropped (two seconds at 15 fps)
+  private static final int MAX_FRAMES_BEHIND = 30;
+
+  private final World world;
+  private final ServerSocket server;
+  private final long frameNanos;
+
+  //Guarded by this: the latest encoded frame, the viewers waiting for frames
+  //and the open connections, which are closed when the server is
+  private byte[] frame;
+  private long frameNumber;
+  private int viewerCount;
+  private final ArrayList<Connection> connections = new ArrayList<Connection>();
+  private boolean closed;
+
+  /**
+   *  Starts a server for a world on the given port, only reachable
+   *  from this computer, with at most 15 frames per second.
+   *
+   *  @param w The world to show.
+   *  @param port The port to listen on, or 0 to pick a free port.
+   *
+   *  @throws IOException If the port can't be opened.
+   */
+  public WorldViewServer(World w, int port) throws IOException {
+    this(w, InetAddress.getLoopbackAddress(), port, 15);
+  }
+
+  /**
+   *  Starts a server for a world.
+   *
+   *  @param w The world to show.
+   *  @param address The address to listen on. Use the loopback address
+   *  unless the world should be visible to other computers.
+   *  @param port The port to listen on, or 0 to pick a free port.
+   *  @param maxFramesPerSecond The highest number of frames sent per second.
+   *
+   *  @throws IOException If the port can't be opened.
+   */
+  public WorldViewServer(World w, InetAddress address, int port, int maxFramesPerSecond) throws IOException {
+    if(w == null)
+      throw new RuntimeException("Can't show a null world.");
+    if(maxFramesPerSecond < 1)
+      throw new RuntimeException("Invalid frame rate.");
+
+    this.world = w;
+    this.frameNanos = 1000000000L / maxFramesPerSecond;
+
+    this.server = new ServerSocket();
+    this.server.bind(new InetSocketAddress(address, port));
+
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        acceptViewers();
+      }
+    }, "World view server");
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    Thread encoder = new Thread(new Runnable() {
+      public void run() {
+        encodeFrames();
+      }
+    }, "World view encoder");
+    encoder.setDaemon(true);
+    encoder.start();
+  }
+
+  /**
+   *  Returns the port the server listens on.
+   *
+   *  @return The port.
+   */
+  public int getPort() {
+    return this.server.getLocalPort();
+  }
+
+  /**
+   *  Returns the number of viewers currently watching.
+   *
+   *  @return The viewer count.
+   */
+  public synchronized int getViewerCount() {
+    return this.viewerCount;
+  }
+
+  /**
+   *  Stops the server and disconnects all viewers.
+   */
+  public void close() {
+    Connection[] open;
+    synchronized(this) {
+      this.closed = true;
+      notifyAll();
+      open = this.connections.toArray(new Connection[this.connections.size()]);
+    }
+
+    try {
+      this.server.close();
+    } catch(IOException e) {
+      //Closing anyway
+    }
+
+    //Closing the sockets also stops viewers which are stuck writing
+    for(Connection c : open)
+      c.close();
+  }
+
+  //
+  //  Implementation details below here...
+  //
+
+  private void acceptViewers() {
+    while(true) {
+      final Socket socket;
+      try {
+        socket = this.server.accept();
+      } catch(IOException e) {
+        //The server socket has been closed
+        return;
+      }
+
+      Thread viewer = new Thread(new Runnable() {
+        public void run() {
+          serve(socket);
+        }
+      }, "World view connection");
+      viewer.setDaemon(true);
+      viewer.start();
+    }
+  }
+
+  /**
+   *  Runs on the encoder thread. Waits while nobody is watching,
+   *  otherwise paints and encodes the world once per frame interval if
+   *  it has changed since the last frame.
+   */
+  private void encodeFrames() {
+    try {
+      encodeFramesUntilClosed();
+    } finally {
+      //Without frames viewers would wait forever, so a failed encoder closes the server
+      close();
+    }
+  }
+
+  private void encodeFramesUntilClosed() {
+    BufferedImage img = new BufferedImage(this.world.getWidth(), this.world.getHeight(), BufferedImage.TYPE_INT_RGB);
+    Ellipse2D.Double circle = new Ellipse2D.Double();
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream(64 * 1024);
+    int lastChange = 0;
+    boolean first = true;
+
+    while(true) {
+      long start = System.nanoTime();
+
+      synchronized(this) {
+        while(this.viewerCount == 0 && !this.closed) {
+          try {
+            wait();
+          } catch(InterruptedException e) {
+            return;
+          }
+        }
+        if(this.closed)
+          return;
+      }
+
+      int change = this.world.getChangeCount();
+      if(first || change != lastChange) {
+        first = false;
+        lastChange = change;
+
+        Graphics2D g = img.createGraphics();
+        this.world.paintWorld(g, circle);
+        g.dispose();
+
+        jpeg.reset();
+        try {
+          ImageIO.write(img, "jpeg", jpeg);
+        } catch(IOException e) {
+          throw new RuntimeException("Failed to encode a frame of the world.", e);
+        }
+
+        ArrayList<Connection> behind = new ArrayList<Connection>();
+        synchronized(this) {
+          this.frame = jpeg.toByteArray();
+          ++this.frameNumber;
+          notifyAll();
+
+          for(Connection c : this.connections) {
+            if(c.viewing && this.frameNumber - c.sent > MAX_FRAMES_BEHIND)
+              behind.add(c);
+          }
+        }
+
+        //Viewers which stopped reading would otherwise keep the encoder busy forever
+        for(Connection c : behind)
+          c.close();
+      }
+
+      //Keep to the frame rate
+      long sleepNanos = this.frameNanos - (System.nanoTime() - start);
+      if(sleepNanos > 0) {
+        try {
+          Thread.sleep(sleepNanos / 1000000L, (int)(sleepNanos % 1000000L));
+        } catch(InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   *  Waits for a frame newer than the given number, while counted as a viewer.
+   *  Returns null when the server is closed.
+   */
+  private synchronized byte[] waitForFrame(long after) throws InterruptedException {
+    while(this.frameNumber <= after && !this.closed)
+      wait();
+    return this.closed ? null : this.frame;
+  }
+
+  private void serve(Socket socket) {
+    Connection connection = new Connection(socket);
+    synchronized(this) {
+      this.connections.add(connection);
+    }
+
+    try {
+      //A connection accepted while closing is left to the close below
+      synchronized(this) {
+        if(this.closed)
+          return;
+      }
+
+      socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+      OutputStream out = socket.getOutputStream();
+      String path = readRequestPath(new BufferedInputStream(socket.getInputStream()));
+
+      if(path == null) {
+        //Not a request this server understands
+      } else if(path.equals("/")) {
+        byte[] page = ("<!DOCTYPE html><html><head><title>World</title></head>" +
+          "<body style=\"margin:0;background:#444\"><img src=\"/stream\" alt=\"World\"></body></html>").getBytes("UTF-8");
+        writeAscii(out, "HTTP/1.0 200 OK\r\nContent-Type: text/html; charset=utf-8\r\nContent-Length: " + page.length + "\r\n\r\n");
+        out.write(page);
+      } else if(path.equals("/stream") || path.equals("/frame.jpg")) {
+        serveFrames(connection, out, path.equals("/stream"));
+      } else {
+        writeAscii(out, "HTTP/1.0 404 Not Found\r\nContent-Length: 0\r\n\r\n");
+      }
+      out.flush();
+    } catch(SocketException e) {
+      //The viewer went away
+    } catch(IOException e) {
+      //The viewer went away
+    } catch(InterruptedException e) {
+      //Stopping
+    } finally {
+      synchronized(this) {
+        this.connections.remove(connection);
+      }
+      connection.close();
+    }
+  }
+
+  private void serveFrames(Connection connection, OutputStream out, boolean stream) throws IOException, InterruptedException {
+    long sent;
+    synchronized(this) {
+      //A new viewer gets the current frame right away if there is one
+      sent = (this.frame != null) ? this.frameNumber - 1 : this.frameNumber;
+      connection.sent = this.frameNumber;
+      connection.viewing = true;
+      if(++this.viewerCount == 1)
+        notifyAll();
+    }
+
+    try {
+      if(stream)
+        writeAscii(out, "HTTP/1.0 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY +
+          "\r\nCache-Control: no-cache\r\nConnection: close\r\n\r\n");
+
+      do {
+        byte[] jpeg;
+        synchronized(this) {
+          jpeg = waitForFrame(sent);
+          sent = this.frameNumber;
+          connection.sent = sent;
+        }
+        if(jpeg == null)
+          return;
+
+        if(stream) {
+          writeAscii(out, "--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + jpeg.length + "\r\n\r\n");
+          out.write(jpeg);
+          writeAscii(out, "\r\n");
+        } else {
+          writeAscii(out, "HTTP/1.0 200 OK\r\nContent-Type: image/jpeg\r\nCache-Control: no-cache\r\nContent-Length: " +
+            jpeg.length + "\r\n\r\n");
+          out.write(jpeg);
+        }
+        out.flush();
+      } while(stream);
+    } finally {
+      synchronized(this) {
+        connection.viewing = false;
+        --this.viewerCount;
+      }
+    }
+  }
+
+  /**
+   *  Reads an HTTP request and returns the path of a GET request,
+   *  or null if it's something else.
+   */
+  private static String readRequestPath(InputStream in) throws IOException {
+    StringBuilder request = new StringBuilder();
+
+    //Read the headers up to the empty line, with a limit against junk
+    while(request.length() < 8192) {
+      int c = in.read();
+      if(c < 0)
+        break;
+      request.append((char)c);
+      int n = request.length();
+      if(n >= 4 && request.charAt(n-4) == '\r' && request.charAt(n-3) == '\n' && request.charAt(n-2) == '\r' && request.charAt(n-1) == '\n')
+        break;
+    }
+
+    String[] requestLine = request.toString().split("\r\n", 2)[0].split(" ");
+    if(requestLine.length < 2 || !requestLine[0].equals("GET"))
+      return null;
+
+    String path = requestLine[1];
+    int query = path.indexOf('?');
+    return (query >= 0) ? path.substring(0, query) : path;
+  }
+
+  private static void writeAscii(OutputStream out, String s) throws IOException {
+    out.write(s.getBytes("US-ASCII"));
+  }
+
+  /**
+   *  Private class for an open connection. The frame fields are
+   *  guarded by the server.
+   */
+  private static class Connection {
+    final Socket socket;
+
+    //Whether frames are being sent, and the number of the latest frame taken
+    boolean viewing;
+    long sent;
+
+    Connection(Socket socket) {
+      this.socket = socket;
+    }
+
+    void close() {
+      try {
+        this.socket.close();
+      } catch(IOException e) {
+        //Closing anyway
+      }
+    }
+  }
+}
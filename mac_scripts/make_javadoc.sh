@@ -1,3 +1,3 @@
 #!/bin/bash
 
-javadoc -d ../doc ../Turtle.java ../World.java -nodeprecatedlist -nohelp -notree -noindex -windowtitle "Turtle and World Documentation"
\ No newline at end of file
+javadoc -d ../doc ../Turtle.java ../World.java ../TurtleProgram.java ../WorldState.java ../ShardedWorld.java ../WorldViewServer.java -nodeprecatedlist -nohelp -notree -noindex -windowtitle "Turtle and World Documentation"
\ No newline at end of file
@@ -1,4 +1,4 @@
 mkdir ..\doc
-javadoc -d ..\doc ..\Turtle.java ..\World.java -nodeprecatedlist -nohelp -notree -noindex -windowtitle "Turtle and World Documentation"
+javadoc -d ..\doc ..\Turtle.java ..\World.java ..\TurtleProgram.java ..\WorldState.java ..\ShardedWorld.java ..\WorldViewServer.java -nodeprecatedlist -nohelp -notree -noindex -windowtitle "Turtle and World Documentation"
 
 pause
\ No newline at end of file